@@ -15,7 +15,9 @@
 package org.corfudb.runtime;
 
 import java.io.Serializable;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 /**
  * This is the interface exposed by CorfuDB to developers of new objects.
@@ -28,7 +30,8 @@ public interface AbstractRuntime
      *
      * Outside a transactional context it returns after syncing until the current tail of
      * the underlying SMR stream bundle (in the process, it calls the CorfuDB object's apply
-     * upcall.
+     * upcall. Objects can relax this with CorfuDBObject.setReadMode, to either tolerate a
+     * bounded amount of staleness or read their local state without syncing at all.
      *
      * Within a transactional context it returns immediately after modifying the
      * read-set of the transaction.
@@ -37,6 +40,28 @@ public interface AbstractRuntime
      */
     void query_helper(CorfuDBObject cob);
 
+    /**
+     * This is a variant of query_helper for accessors that only read the state under one key
+     * of the object. Within a transactional context it marks just that key as read, so that
+     * the transaction only conflicts with updates that change the key (as tracked by
+     * CorfuDBObject.getTimestamp(Object)). Otherwise it behaves like query_helper.
+     *
+     * @param cob the calling CorfuDB object
+     * @param key the key read by the accessor
+     */
+    void query_helper(CorfuDBObject cob, Serializable key);
+
+    /**
+     * This is a variant of query_helper for accessors whose callers only act on the state through
+     * commutative updates (see CorfuDBObject.CommutativeUpdate), e.g., reading a counter before
+     * incrementing it. In a transactional context the read only conflicts with updates that aren't
+     * commutative, so transactions that read and increment a counter don't abort each other; the
+     * value read may miss increments that commit concurrently. Otherwise it behaves like query_helper.
+     *
+     * @param cob the calling CorfuDB object
+     */
+    void query_helper_commutative(CorfuDBObject cob);
+
     /**
      * This function is to be called within any mutator method in the CorfuDB object.
      *
@@ -50,6 +75,23 @@ public interface AbstractRuntime
      */
     void update_helper(CorfuDBObject cob, Serializable update);
 
+    /**
+     * This is an asynchronous variant of update_helper, for mutators that don't return anything.
+     *
+     * Outside a transactional context it returns immediately. The update is appended to the
+     * underlying SMR stream bundle in the background; updates issued this way on one object are
+     * appended in the order they were issued, but not in order with respect to synchronous updates.
+     *
+     * Within a transactional context it buffers the update and returns an already completed future.
+     *
+     * @param cob the calling CorfuDB object
+     * @param update a serializable description of the update
+     * @param applied if true, the future completes once the update is applied to the object,
+     *                rather than once it is appended
+     * @return a future for the log position of the update
+     */
+    Future<Long> update_helper_async(CorfuDBObject cob, Serializable update, boolean applied);
+
 
     /**
      * This function is to be called within any method that first accesses, then
@@ -71,6 +113,29 @@ public interface AbstractRuntime
      */
     void query_then_update_helper(CorfuDBObject cob, Object query, Serializable update);
 
+    /**
+     * This is a variant of query_then_update_helper for methods whose query only reads the state
+     * under one key of the object; see query_helper(CorfuDBObject, Serializable).
+     *
+     * @param cob the calling CorfuDB object
+     * @param query a description of the query
+     * @param update a serializable description of the update
+     * @param key the key read by the query
+     */
+    void query_then_update_helper(CorfuDBObject cob, Object query, Serializable update, Serializable key);
+
+    /**
+     * Reads back the updates to a CorfuDB object in the log entry at the given position, in the
+     * order they were applied, for objects that leave part of their state in the log rather than
+     * in memory. Updates of transactions are returned whether the transaction committed or not,
+     * so this should only be called for positions whose updates the object saw applied.
+     *
+     * @param cob the calling CorfuDB object
+     * @param pos the log position of the entry
+     * @return the updates to the object in the entry
+     */
+    List<Object> readUpdates(CorfuDBObject cob, long pos);
+
     /**
      * This function is used to register a CorfuDB object with the runtime. Future updates that
      * belong to a particular stream ID are directed to the object with the same object ID.
@@ -79,11 +144,48 @@ public interface AbstractRuntime
      */
     void registerObject(CorfuDBObject obj);
 
+    /**
+     * Checkpoints the state of a CorfuDB object into the log. Objects registered later (e.g., by
+     * new clients) start from the latest checkpoint and only play back the part of the stream
+     * that follows it.
+     *
+     * @param cob the object to checkpoint
+     * @return the log position of the checkpoint
+     */
+    long checkpoint(CorfuDBObject cob);
+
     /**
      * Starts a new transaction tied to the executing thread. Transactions cannot span threads.
      */
     void BeginTX();
 
+    /**
+     * Starts a new transaction tied to the executing thread. A read-only transaction is pinned
+     * to the log position the first object it reads is synced to, and all its reads are served
+     * from the state of the objects as of that position. It can't update objects; it never
+     * appends to the log and always commits. Only objects that support snapshots can be read;
+     * maps that aren't lock-free only serve get and containsKey, from their history, and reject
+     * other reads.
+     *
+     * @param readonly whether the transaction is a read-only one
+     */
+    void BeginTX(boolean readonly);
+
+    /**
+     * Returns the log position that the current read-only transaction of the executing thread
+     * is pinned to, or SMREngine.TIMESTAMP_INVALID if there is none, in which case objects read
+     * their current state. Objects serve reads as of the state reflecting all entries strictly
+     * before this position.
+     */
+    long getSnapshotPosition();
+
+    /**
+     * Returns the oldest log position that a read-only transaction of any thread is pinned to,
+     * or SMREngine.TIMESTAMP_INVALID if there is none. Objects retain the state that reads as of
+     * this position need.
+     */
+    long getOldestSnapshotPosition();
+
     /**
      * Attempts to commit a transaction.
      *
@@ -0,0 +1,343 @@
+/**
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.corfudb.runtime;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A CorfuDB map for large values that are rarely read. Instead of the values, the map keeps the
+ * log position of the update that wrote each key, and reads of a value fetch that update from the
+ * log and take the value from it. The most recently read values are kept decoded in a bounded LRU
+ * cache, so the heap the map takes is a few bytes per key plus the cache.
+ *
+ * Reads of values that aren't cached cost a log read; the operations that read every value
+ * (containsValue, values, entrySet) read them all. The map can't be checkpointed, since its state
+ * refers to entries of the stream; trimming the stream makes the values written before the trim
+ * point unreadable.
+ */
+public class CorfuDBLazyMap<K,V> extends CorfuDBObject implements Map<K,V>
+{
+    //log position of the update that wrote each key
+    HashMap<K, Long> positions = new HashMap<K, Long>();
+    //values applied since the last timestamp, whose position isn't known yet
+    HashMap<K, V> unstamped = new HashMap<K, V>();
+    //recently read values, least recently read first; guarded by itself
+    LinkedHashMap<K, V> hotvalues;
+    int cachesize;
+
+    static final int DEFAULT_CACHE_SIZE = 1024;
+
+    public CorfuDBLazyMap(AbstractRuntime tTR, long toid)
+    {
+        this(tTR, toid, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param tcachesize the number of decoded values kept in memory
+     */
+    public CorfuDBLazyMap(AbstractRuntime tTR, long toid, int tcachesize)
+    {
+        super(tTR, toid);
+        maplock = new ReentrantReadWriteLock();
+        cachesize = tcachesize;
+        hotvalues = new LinkedHashMap<K, V>(16, 0.75f, true)
+        {
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+            {
+                return size()>cachesize;
+            }
+        };
+        TR = tTR;
+        oid = toid;
+        TR.registerObject(this);
+    }
+
+    public void apply(Object bs)
+    {
+        MapCommand<K,V> cc = (MapCommand<K,V>)bs;
+        lock(true);
+        if(cc.getCmdType()==MapCommand.CMD_PUT)
+        {
+            written(cc.getKey(), cc.getVal());
+        }
+        else if(cc.getCmdType()==MapCommand.CMD_PREPUT)
+        {
+            //the previous value is resolved by the proposer, off the apply thread
+            if(unstamped.containsKey(cc.getKey()))
+                cc.setReturnValue(new Pair<Long, V>(SMREngine.TIMESTAMP_INVALID, unstamped.get(cc.getKey())));
+            else if(positions.containsKey(cc.getKey()))
+                cc.setReturnValue(new Pair<Long, V>(positions.get(cc.getKey()), null));
+        }
+        else if(cc.getCmdType()==MapCommand.CMD_REMOVE)
+        {
+            positions.remove(cc.getKey());
+            unstamped.remove(cc.getKey());
+            synchronized(hotvalues)
+            {
+                hotvalues.remove(cc.getKey());
+            }
+        }
+        else if(cc.getCmdType()==MapCommand.CMD_CLEAR)
+        {
+            positions.clear();
+            unstamped.clear();
+            synchronized(hotvalues)
+            {
+                hotvalues.clear();
+            }
+        }
+        else if(cc.getCmdType()==MapCommand.CMD_PUTALL)
+        {
+            Iterator<Entry<K,V>> it = cc.getEntries().entrySet().iterator();
+            while(it.hasNext())
+            {
+                Entry<K,V> e = it.next();
+                written(e.getKey(), e.getValue());
+            }
+        }
+        else
+        {
+            unlock(true);
+            throw new RuntimeException("Unrecognized command in stream!");
+        }
+        unlock(true);
+    }
+
+    //called with the write lock held; the value is dropped once setTimestamp records where it is in the log
+    void written(K key, V val)
+    {
+        positions.put(key, SMREngine.TIMESTAMP_INVALID);
+        unstamped.put(key, val);
+        synchronized(hotvalues)
+        {
+            hotvalues.remove(key);
+        }
+    }
+
+    @Override
+    public void setTimestamp(long newts)
+    {
+        super.setTimestamp(newts);
+        lock(true);
+        Iterator<K> it = unstamped.keySet().iterator();
+        while(it.hasNext())
+            positions.put(it.next(), newts);
+        unstamped.clear();
+        unlock(true);
+    }
+
+    //reads the value the update at the given position wrote to the key from the log
+    V fetch(K key, long pos)
+    {
+        List<Object> updates = TR.readUpdates(this, pos);
+        //the last update to the key within the entry is the one that stuck
+        ListIterator<Object> it = updates.listIterator(updates.size());
+        while(it.hasPrevious())
+        {
+            MapCommand<K,V> cc = (MapCommand<K,V>)it.previous();
+            if(cc.getCmdType()==MapCommand.CMD_PUT && (key==null ? cc.getKey()==null : key.equals(cc.getKey())))
+                return cc.getVal();
+            if(cc.getCmdType()==MapCommand.CMD_PUTALL && cc.getEntries().containsKey(key))
+                return cc.getEntries().get(key);
+        }
+        throw new RuntimeException("no update to the key at position " + pos);
+    }
+
+    //returns the value of a key as of the current state; the caller has synced the map
+    V read(K key)
+    {
+        long pos;
+        lock();
+        if(unstamped.containsKey(key))
+        {
+            V x = unstamped.get(key);
+            unlock();
+            return x;
+        }
+        if(!positions.containsKey(key))
+        {
+            unlock();
+            return null;
+        }
+        pos = positions.get(key);
+        synchronized(hotvalues)
+        {
+            if(hotvalues.containsKey(key))
+            {
+                V x = hotvalues.get(key);
+                unlock();
+                return x;
+            }
+        }
+        unlock();
+        V x = fetch(key, pos);
+        lock();
+        //the key may have been written again while the value was fetched
+        Long curpos = positions.get(key);
+        if(curpos!=null && curpos==pos)
+        {
+            synchronized(hotvalues)
+            {
+                hotvalues.put(key, x);
+            }
+        }
+        unlock();
+        return x;
+    }
+
+    //resolves the previous value returned by a CMD_PREPUT
+    V previous(MapCommand<K,V> precmd)
+    {
+        Pair<Long, V> prev = (Pair<Long, V>)precmd.getReturnValue();
+        if(prev==null) return null;
+        if(prev.first==SMREngine.TIMESTAMP_INVALID) return prev.second;
+        return fetch(precmd.getKey(), prev.first);
+    }
+
+    //copies the keys, so that the values can be read without holding the lock
+    Set<K> keys()
+    {
+        lock();
+        HashSet<K> x = new HashSet<K>(positions.keySet());
+        unlock();
+        return x;
+    }
+
+    //reads all the values; keys removed in the meantime are left out
+    Map<K,V> materialize()
+    {
+        HashMap<K,V> x = new HashMap<K,V>();
+        Iterator<K> it = keys().iterator();
+        while(it.hasNext())
+        {
+            K key = it.next();
+            V val = read(key);
+            if(val!=null || containsKeyLocal(key))
+                x.put(key, val);
+        }
+        return x;
+    }
+
+    boolean containsKeyLocal(Object key)
+    {
+        lock();
+        boolean x = positions.containsKey(key);
+        unlock();
+        return x;
+    }
+
+    @Override
+    public int size()
+    {
+        TR.query_helper(this);
+        lock();
+        int x = positions.size();
+        unlock();
+        return x;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        TR.query_helper(this);
+        lock();
+        boolean x = positions.isEmpty();
+        unlock();
+        return x;
+    }
+
+    @Override
+    public boolean containsKey(Object o)
+    {
+        TR.query_helper(this);
+        return containsKeyLocal(o);
+    }
+
+    /**
+     * Reads every value that isn't cached from the log.
+     */
+    @Override
+    public boolean containsValue(Object o)
+    {
+        TR.query_helper(this);
+        return materialize().containsValue(o);
+    }
+
+    @Override
+    public V get(Object o)
+    {
+        TR.query_helper(this);
+        return read((K)o);
+    }
+
+    public V put(K key, V val)
+    {
+        MapCommand<K,V> precmd = new MapCommand<K,V>(MapCommand.CMD_PREPUT, key);
+        TR.query_then_update_helper(this, precmd, new MapCommand<K, V>(MapCommand.CMD_PUT, key, val));
+        return previous(precmd);
+    }
+
+    @Override
+    public V remove(Object o)
+    {
+        MapCommand<K,V> precmd = new MapCommand<K,V>(MapCommand.CMD_PREPUT, (K)o);
+        TR.query_then_update_helper(this, precmd, new MapCommand<K, V>(MapCommand.CMD_REMOVE, (K) o));
+        return previous(precmd);
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> map)
+    {
+        TR.update_helper(this, new MapCommand<K, V>(MapCommand.CMD_PUTALL, new HashMap<K, V>(map)));
+    }
+
+    @Override
+    public void clear()
+    {
+        TR.update_helper(this, new MapCommand<K, V>(MapCommand.CMD_CLEAR));
+    }
+
+    /**
+     * Returns a read-only snapshot of the keys, which doesn't reflect later updates.
+     */
+    @Override
+    public Set<K> keySet()
+    {
+        TR.query_helper(this);
+        return Collections.unmodifiableSet(keys());
+    }
+
+    /**
+     * Reads every value that isn't cached from the log, and returns a read-only snapshot of them.
+     */
+    @Override
+    public Collection<V> values()
+    {
+        TR.query_helper(this);
+        return Collections.unmodifiableMap(materialize()).values();
+    }
+
+    /**
+     * Reads every value that isn't cached from the log, and returns a read-only snapshot of the entries.
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet()
+    {
+        TR.query_helper(this);
+        return Collections.unmodifiableMap(materialize()).entrySet();
+    }
+}
@@ -0,0 +1,357 @@
+/**
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.corfudb.runtime;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A CorfuDB map from primitive long keys to fixed-size byte array values. Entries are
+ * stored inline in an open-addressing table instead of as boxed HashMap entries, either
+ * on the heap or in direct (off-heap) memory, so the per-entry overhead is a few bytes.
+ */
+public class CorfuDBLongMap extends CorfuDBObject
+{
+    //backing state of the map
+    LongByteTable table;
+    int valuesize;
+
+    public CorfuDBLongMap(AbstractRuntime tTR, long toid, int tvaluesize)
+    {
+        this(tTR, toid, tvaluesize, false);
+    }
+
+    /**
+     * @param tvaluesize the size of every value in bytes
+     * @param offheap whether the entries are kept in direct memory rather than on the heap
+     */
+    public CorfuDBLongMap(AbstractRuntime tTR, long toid, int tvaluesize, boolean offheap)
+    {
+        super(tTR, toid);
+        maplock = new ReentrantReadWriteLock();
+        valuesize = tvaluesize;
+        table = new LongByteTable(tvaluesize, offheap);
+        TR = tTR;
+        oid = toid;
+        TR.registerObject(this);
+    }
+
+    public void apply(Object bs)
+    {
+        LongMapCommand cc = (LongMapCommand)bs;
+        lock(true);
+        if(cc.getCmdType()==LongMapCommand.CMD_PUT)
+            table.put(cc.getKey(), cc.getVal());
+        else if(cc.getCmdType()==LongMapCommand.CMD_REMOVE)
+            table.remove(cc.getKey());
+        else if(cc.getCmdType()==LongMapCommand.CMD_CLEAR)
+            table.clear();
+        else
+        {
+            unlock(true);
+            throw new RuntimeException("Unrecognized command in stream!");
+        }
+        unlock(true);
+    }
+
+    public long size()
+    {
+        TR.query_helper(this);
+        lock();
+        long x = table.size();
+        unlock();
+        return x;
+    }
+
+    public boolean containsKey(long key)
+    {
+        TR.query_helper(this);
+        lock();
+        boolean x = table.find(key)>=0;
+        unlock();
+        return x;
+    }
+
+    /**
+     * @return a copy of the value of the key, or null if the key is not in the map
+     */
+    public byte[] get(long key)
+    {
+        TR.query_helper(this);
+        lock();
+        byte[] x = table.get(key);
+        unlock();
+        return x;
+    }
+
+    /**
+     * Puts a value; unlike Map.put, this doesn't return the previous value, so it returns
+     * as soon as the update is appended.
+     */
+    public void put(long key, byte[] val)
+    {
+        if(val.length!=valuesize) throw new RuntimeException("value size has to be " + valuesize + " bytes");
+        TR.update_helper(this, new LongMapCommand(LongMapCommand.CMD_PUT, key, val));
+    }
+
+    public void remove(long key)
+    {
+        TR.update_helper(this, new LongMapCommand(LongMapCommand.CMD_REMOVE, key, null));
+    }
+
+    public void clear()
+    {
+        TR.update_helper(this, new LongMapCommand(LongMapCommand.CMD_CLEAR, 0, null));
+    }
+}
+
+/**
+ * Update to a CorfuDBLongMap. Uses a hand-written binary encoding rather than default
+ * serialization, since these are logged once per update.
+ */
+class LongMapCommand implements Externalizable
+{
+    static final byte CMD_PUT = 0;
+    static final byte CMD_REMOVE = 1;
+    static final byte CMD_CLEAR = 2;
+    byte cmdtype;
+    long key;
+    byte[] val;
+
+    public LongMapCommand()
+    {
+        //for deserialization
+    }
+
+    public LongMapCommand(byte tcmdtype, long tkey, byte[] tval)
+    {
+        cmdtype = tcmdtype;
+        key = tkey;
+        val = tval;
+    }
+
+    public byte getCmdType()
+    {
+        return cmdtype;
+    }
+
+    public long getKey()
+    {
+        return key;
+    }
+
+    public byte[] getVal()
+    {
+        return val;
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException
+    {
+        out.writeByte(cmdtype);
+        out.writeLong(key);
+        if(val==null)
+            out.writeInt(-1);
+        else
+        {
+            out.writeInt(val.length);
+            out.write(val);
+        }
+    }
+
+    public void readExternal(ObjectInput in) throws IOException
+    {
+        cmdtype = in.readByte();
+        key = in.readLong();
+        int len = in.readInt();
+        if(len>=0)
+        {
+            val = new byte[len];
+            in.readFully(val);
+        }
+    }
+}
+
+/**
+ * Open-addressing hash table from longs to fixed-size byte arrays, with linear probing
+ * and backward-shift deletion (so there are no tombstones). Each slot holds a used flag,
+ * the key and the value back to back. Slots live in ByteBuffer segments, so the table
+ * can grow past the 2GB limit of a single buffer; the segments are either heap buffers
+ * or direct buffers. Not thread-safe.
+ */
+class LongByteTable
+{
+    static final long INITIAL_CAPACITY = 1024;
+    static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+    boolean offheap;
+    int valuesize;
+    int slotsize;
+
+    ByteBuffer[] segments;
+    int segmentbits;
+    long capacity;
+    long count;
+
+    LongByteTable(int tvaluesize, boolean toffheap)
+    {
+        valuesize = tvaluesize;
+        offheap = toffheap;
+        slotsize = 1 + 8 + valuesize;
+        init(INITIAL_CAPACITY);
+    }
+
+    void init(long tcapacity)
+    {
+        capacity = tcapacity;
+        count = 0;
+        long segmentslots = Math.min(capacity, Long.highestOneBit(Math.max(1, MAX_SEGMENT_BYTES / slotsize)));
+        segmentbits = Long.numberOfTrailingZeros(segmentslots);
+        segments = new ByteBuffer[(int)(capacity / segmentslots)];
+        for(int i=0;i<segments.length;i++)
+        {
+            int numbytes = (int)(segmentslots * slotsize);
+            segments[i] = offheap ? ByteBuffer.allocateDirect(numbytes) : ByteBuffer.allocate(numbytes);
+        }
+    }
+
+    long size()
+    {
+        return count;
+    }
+
+    void clear()
+    {
+        init(INITIAL_CAPACITY);
+    }
+
+    long home(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (h ^ (h >>> 32)) & (capacity - 1);
+    }
+
+    ByteBuffer segment(long slot)
+    {
+        return segments[(int)(slot >>> segmentbits)];
+    }
+
+    int offset(long slot)
+    {
+        return (int)(slot & ((1L << segmentbits) - 1)) * slotsize;
+    }
+
+    boolean used(long slot)
+    {
+        return segment(slot).get(offset(slot))!=0;
+    }
+
+    long keyAt(long slot)
+    {
+        return segment(slot).getLong(offset(slot) + 1);
+    }
+
+    /**
+     * @return the slot holding the key, or -1 if the key is not in the table
+     */
+    long find(long key)
+    {
+        long slot = home(key);
+        while(used(slot))
+        {
+            if(keyAt(slot)==key) return slot;
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return -1;
+    }
+
+    byte[] get(long key)
+    {
+        long slot = find(key);
+        if(slot<0) return null;
+        byte[] ret = new byte[valuesize];
+        ByteBuffer buf = segment(slot).duplicate();
+        buf.position(offset(slot) + 9);
+        buf.get(ret);
+        return ret;
+    }
+
+    void put(long key, byte[] val)
+    {
+        if((count + 1) * 4 > capacity * 3)
+            resize(capacity * 2);
+        long slot = home(key);
+        while(used(slot) && keyAt(slot)!=key)
+            slot = (slot + 1) & (capacity - 1);
+        if(!used(slot)) count++;
+        write(slot, key, val);
+    }
+
+    void write(long slot, long key, byte[] val)
+    {
+        ByteBuffer buf = segment(slot).duplicate();
+        buf.position(offset(slot));
+        buf.put((byte)1);
+        buf.putLong(key);
+        buf.put(val);
+    }
+
+    boolean remove(long key)
+    {
+        long hole = find(key);
+        if(hole<0) return false;
+        //shift later entries of the probe sequence back into the hole, unless that would
+        //move them before their home slot
+        long slot = hole;
+        while(true)
+        {
+            slot = (slot + 1) & (capacity - 1);
+            if(!used(slot)) break;
+            long h = home(keyAt(slot));
+            boolean inrange = (hole<=slot) ? (hole<h && h<=slot) : (hole<h || h<=slot);
+            if(inrange) continue;
+            byte[] val = new byte[valuesize];
+            ByteBuffer buf = segment(slot).duplicate();
+            buf.position(offset(slot) + 9);
+            buf.get(val);
+            write(hole, keyAt(slot), val);
+            hole = slot;
+        }
+        segment(hole).put(offset(hole), (byte)0);
+        count--;
+        return true;
+    }
+
+    void resize(long newcapacity)
+    {
+        ByteBuffer[] oldsegments = segments;
+        int oldsegmentbits = segmentbits;
+        long oldcapacity = capacity;
+        init(newcapacity);
+        byte[] val = new byte[valuesize];
+        for(long slot=0;slot<oldcapacity;slot++)
+        {
+            ByteBuffer buf = oldsegments[(int)(slot >>> oldsegmentbits)].duplicate();
+            buf.position((int)(slot & ((1L << oldsegmentbits) - 1)) * slotsize);
+            if(buf.get()==0) continue;
+            long key = buf.getLong();
+            buf.get(val);
+            put(key, val);
+        }
+    }
+}
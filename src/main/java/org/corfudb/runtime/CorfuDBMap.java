@@ -16,6 +16,9 @@ package org.corfudb.runtime;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class CorfuDBMap<K,V> extends CorfuDBObject implements Map<K,V>
@@ -23,11 +26,96 @@ public class CorfuDBMap<K,V> extends CorfuDBObject implements Map<K,V>
     //backing state of the map
     Map<K, V> backingmap;
 
+    //keys updated since the last checkpoint, and whether the map was cleared since then (or had too many
+    //keys updated for a delta to pay off); only tracked once there's a checkpoint to take a delta against
+    Set<K> dirtykeys;
+    boolean dirtycleared;
+    //whether the map state was checkpointed or restored, i.e., whether there's something to take a delta against
+    boolean hasbase;
+    //number of delta checkpoints taken or restored since the last full one
+    int numdeltas;
+    int maxdeltas = DEFAULT_MAX_DELTAS;
+    static final int DEFAULT_MAX_DELTAS = 16;
+
+    //read-only copy of backingmap shared by the collection views; dropped whenever the map changes,
+    //and rebuilt by the next view that needs it
+    volatile Map<K, V> snapshot;
+
+    //in lock-free mode, backingmap is a HashTrieMap, and after every applied update an immutable
+    //snapshot of it is published along with the timestamp it reflects; readers only dereference it
+    boolean lockfree;
+    volatile Pair<HashTrieMap<K,V>, Long> published;
+    //the most recent published snapshots, oldest first, which read-only transactions pinned to
+    //an earlier log position read from; at most MAX_VERSIONS of them, plus those running read-only
+    //transactions still need. guarded by itself
+    LinkedList<Pair<HashTrieMap<K,V>, Long>> versions = new LinkedList<Pair<HashTrieMap<K,V>, Long>>();
+    static final int MAX_VERSIONS = 64;
+
+    //versions of the keys, for transactional conflict detection; keys are hashed into a fixed number
+    //of buckets, so the versions take constant space and keys that share a bucket conflict spuriously.
+    //apply records the buckets it changes, and setTimestamp stamps them with the new version. the
+    //versions are checkpointed with the state, so that restored clients validate the same way
+    AtomicLongArray keyversions = new AtomicLongArray(KEY_BUCKETS);
+    static final int KEY_BUCKETS = 1024;
+    Set<Integer> touchedbuckets = new HashSet<Integer>();
+    boolean touchedall = false;
+
+    //multi-version history of the keys, for reads as of earlier log positions; null unless enabled
+    VersionHistory<K,V> history;
+    //whether the state was replaced wholesale, so the history restarts at the next timestamp
+    boolean historyreset = false;
+
+    //subscriptions to the changes of the map; changed with the write lock held, and iterated by setTimestamp
+    //synchronized on the list
+    List<MapSubscription<K,V>> subscribers = new ArrayList<MapSubscription<K,V>>();
+    //changes made by the updates of the log entry being applied, which setTimestamp delivers once their
+    //position is known; one per key, with the value the key had before the entry
+    LinkedHashMap<K, MapChange<K,V>> pendingchanges = new LinkedHashMap<K, MapChange<K,V>>();
+    //set between applying an update and setting its timestamp; cleared with the write lock held, and
+    //signalled on stamped, which subscribe waits on
+    volatile boolean unstamped = false;
+    Condition stamped;
+
+    //secondary indexes by name; they're local to this client and kept up to date by apply
+    Map<String, MapIndex<K,V>> indexes = new HashMap<String, MapIndex<K,V>>();
+
+    /**
+     * Computes the attribute a secondary index maps entries by.
+     */
+    public interface IndexExtractor<K,V>
+    {
+        /**
+         * @return the index key of the entry, or null to leave the entry out of the index
+         */
+        Object extract(K key, V val);
+    }
+
     public CorfuDBMap(AbstractRuntime tTR, long toid)
+    {
+        this(tTR, toid, false);
+    }
+
+    /**
+     * @param lockfree if set, reads are served from an immutable snapshot of the map that the
+     *                 apply thread publishes after every update, without taking any locks
+     */
+    public CorfuDBMap(AbstractRuntime tTR, long toid, boolean lockfree)
     {
         super(tTR, toid);
         maplock = new ReentrantReadWriteLock();
-        backingmap = new HashMap<K,V>();
+        stamped = maplock.writeLock().newCondition();
+        this.lockfree = lockfree;
+        if(lockfree)
+        {
+            backingmap = new HashTrieMap<K,V>();
+            //the initial empty state precedes every log position
+            published = new Pair<HashTrieMap<K,V>, Long>(((HashTrieMap<K,V>)backingmap).snapshot(), SMREngine.TIMESTAMP_INVALID);
+            versions.add(published);
+        }
+        else
+            backingmap = new HashMap<K,V>();
+        dirtykeys = new HashSet<K>();
+        resetKeyVersions();
         TR = tTR;
         oid = toid;
         TR.registerObject(this);
@@ -41,7 +129,12 @@ public class CorfuDBMap<K,V> extends CorfuDBObject implements Map<K,V>
         maplock.writeLock().lock();
         if(cc.getCmdType()==MapCommand.CMD_PUT)
         {
+            unindex(cc.getKey());
+            recordChange(cc.getKey());
             backingmap.put(cc.getKey(), cc.getVal());
+            index(cc.getKey());
+            markDirty(cc.getKey());
+            touchedbuckets.add(bucket(cc.getKey()));
         }
         else if(cc.getCmdType()==MapCommand.CMD_PREPUT)
         {
@@ -49,28 +142,654 @@ public class CorfuDBMap<K,V> extends CorfuDBObject implements Map<K,V>
         }
         else if(cc.getCmdType()==MapCommand.CMD_REMOVE)
         {
+            unindex(cc.getKey());
+            recordChange(cc.getKey());
             backingmap.remove(cc.getKey());
+            markDirty(cc.getKey());
+            touchedbuckets.add(bucket(cc.getKey()));
         }
         else if(cc.getCmdType()==MapCommand.CMD_CLEAR)
         {
+            if(history!=null || !subscribers.isEmpty())
+            {
+                Iterator<K> it = backingmap.keySet().iterator();
+                while(it.hasNext())
+                    recordChange(it.next());
+            }
             backingmap.clear();
+            reindex();
+            dirtykeys.clear();
+            dirtycleared = true;
+            touchedall = true;
+        }
+        else if(cc.getCmdType()==MapCommand.CMD_PUTALL)
+        {
+            Iterator<K> it = cc.getEntries().keySet().iterator();
+            while(it.hasNext())
+            {
+                K key = it.next();
+                unindex(key);
+                recordChange(key);
+            }
+            backingmap.putAll(cc.getEntries());
+            it = cc.getEntries().keySet().iterator();
+            while(it.hasNext())
+            {
+                K key = it.next();
+                index(key);
+                touchedbuckets.add(bucket(key));
+                markDirty(key);
+            }
         }
         else
         {
             maplock.writeLock().unlock();
             throw new RuntimeException("Unrecognized command in stream!");
         }
+        if(cc.getCmdType()!=MapCommand.CMD_PREPUT)
+        {
+            snapshot = null;
+            unstamped = true;
+        }
         System.out.println("Map size is " + backingmap.size());
         maplock.writeLock().unlock();
     }
 
+    /**
+     * Sets the number of delta checkpoints taken between two full ones. Restores read the
+     * whole chain, so this bounds their cost.
+     *
+     * @param tmaxdeltas the maximum number of deltas on top of a full checkpoint; 0 disables deltas
+     */
+    public void setMaxDeltas(int tmaxdeltas)
+    {
+        maxdeltas = tmaxdeltas;
+    }
+
+    /**
+     * In lock-free mode, returns the timestamp of the published snapshot, so that it matches
+     * the state seen by readers.
+     */
+    @Override
+    public long getTimestamp()
+    {
+        if(lockfree) return published.second;
+        return super.getTimestamp();
+    }
+
+    /**
+     * The runtime sets the timestamp after applying an update; in lock-free mode, this is when
+     * the updated map is published to readers.
+     */
+    @Override
+    public void setTimestamp(long newts)
+    {
+        super.setTimestamp(newts);
+        //a restored state is a change too, though it leaves the bucket versions as checkpointed
+        boolean changed = touchedall || historyreset || !touchedbuckets.isEmpty();
+        //the buckets are stamped before the new state is published, so a lock-free reader that
+        //sees the new state validates against the new version
+        if(touchedall)
+        {
+            for(int i=0;i<KEY_BUCKETS;i++)
+                keyversions.set(i, newts);
+        }
+        else
+        {
+            Iterator<Integer> it = touchedbuckets.iterator();
+            while(it.hasNext())
+                keyversions.set(it.next(), newts);
+        }
+        touchedbuckets.clear();
+        touchedall = false;
+        if(history!=null)
+        {
+            if(historyreset)
+                history.reset(newts);
+            else
+                history.stamp(newts);
+        }
+        historyreset = false;
+        publishChanges(newts);
+        if(unstamped)
+        {
+            lock(true);
+            unstamped = false;
+            stamped.signalAll();
+            unlock(true);
+        }
+        if(lockfree)
+        {
+            published = new Pair<HashTrieMap<K,V>, Long>(((HashTrieMap<K,V>)backingmap).snapshot(), newts);
+            if(changed)
+            {
+                synchronized(versions)
+                {
+                    versions.add(published);
+                    //beyond the bound, the oldest snapshot is dropped unless a running read-only
+                    //transaction reads as of it, i.e., it's the latest one before the oldest pin
+                    long oldestpin = TR.getOldestSnapshotPosition();
+                    while(versions.size()>MAX_VERSIONS
+                            && (oldestpin==SMREngine.TIMESTAMP_INVALID || versions.get(1).second<oldestpin))
+                        versions.removeFirst();
+                }
+            }
+        }
+    }
+
+    /**
+     * Read-only transactions are served from the published snapshots in lock-free mode, rolled
+     * back with the history, if it's enabled, when they're pinned before the snapshots retained;
+     * or otherwise from the history, which then only supports get and containsKey.
+     */
+    @Override
+    public boolean supportsSnapshots()
+    {
+        return lockfree || history!=null;
+    }
+
+    /**
+     * Starts keeping the history of the map, so that getAt can read keys as of earlier log
+     * positions. The history covers the given number of log positions behind the latest update
+     * to the map, starting with the updates applied from now on; older versions are dropped as
+     * updates are applied. Calling this again changes the retention window.
+     *
+     * @param retention the number of log positions the history covers; Long.MAX_VALUE keeps
+     *                  everything until trimHistory is called
+     */
+    public void enableHistory(long retention)
+    {
+        lock(true);
+        if(history==null)
+            history = new VersionHistory<K,V>(retention, super.getTimestamp() + 1);
+        else
+            history.setRetention(retention);
+        unlock(true);
+    }
+
+    /**
+     * Drops the history that only reads before the given position need, e.g., when the log
+     * is trimmed up to it.
+     */
+    public void trimHistory(long pos)
+    {
+        lock(true);
+        if(history!=null)
+            history.gc(pos);
+        unlock(true);
+    }
+
+    /**
+     * Returns the value of the key as of the given log position, i.e., reflecting the updates to
+     * the map at positions strictly before it. Syncs the map first if the position is past what
+     * has been played back.
+     */
+    public V getAt(K key, long pos)
+    {
+        if(pos>super.getTimestamp()+1)
+            TR.query_helper(this);
+        return versionAt(key, pos).val;
+    }
+
+    VersionRecord<K,V> versionAt(K key, long pos)
+    {
+        lock();
+        if(history==null)
+        {
+            unlock();
+            throw new RuntimeException("history is not enabled");
+        }
+        VersionRecord<K,V> x = history.lookup(key, pos, backingmap);
+        unlock();
+        if(x==null) throw new RuntimeException("the history of the map at position " + pos + " is no longer retained");
+        return x;
+    }
+
+    //called with the write lock held, before an update changes the key
+    void recordChange(K key)
+    {
+        if(history!=null)
+            history.record(key, backingmap.containsKey(key), backingmap.get(key));
+        if(!subscribers.isEmpty() && !pendingchanges.containsKey(key))
+            pendingchanges.put(key, new MapChange<K,V>(key, backingmap.get(key), null));
+    }
+
+    //called by the apply thread, the only one that changes backingmap, so it can read it without the lock
+    void publishChanges(long ts)
+    {
+        if(pendingchanges.isEmpty()) return;
+        for(MapChange<K,V> C : pendingchanges.values())
+        {
+            C.newval = backingmap.get(C.key);
+            C.pos = ts;
+        }
+        synchronized(subscribers)
+        {
+            for(MapSubscription<K,V> S : subscribers)
+                for(MapChange<K,V> C : pendingchanges.values())
+                    S.deliver(C);
+        }
+        pendingchanges.clear();
+    }
+
+    //called with the write lock held, when the state is replaced wholesale and the changes can't be told apart
+    void cutSubscribers()
+    {
+        pendingchanges.clear();
+        synchronized(subscribers)
+        {
+            for(MapSubscription<K,V> S : subscribers)
+                S.cut(super.getTimestamp() + 1, "the state of the map was replaced");
+        }
+    }
+
+    /**
+     * Subscribes to the changes the updates applied from now on make to the map; see
+     * MapSubscription. The subscription is local to this client and is fed by playback, so
+     * it only sees updates once something syncs the map.
+     *
+     * @param buffersize the number of changes buffered for the subscriber before it's cut off
+     */
+    public MapSubscription<K,V> subscribe(int buffersize)
+    {
+        return subscribe(SMREngine.TIMESTAMP_INVALID, buffersize);
+    }
+
+    /**
+     * Subscribes to the changes made by the updates at or after the given log position, e.g.,
+     * to resume a subscription that was cut off or closed. Changes that were already applied
+     * are replayed from the history of the map, so the position has to be within the history
+     * (see enableHistory) unless it's later than the updates applied so far.
+     *
+     * @param frompos the position of the first update to deliver the changes of
+     * @param buffersize the number of changes buffered for the subscriber before it's cut off
+     */
+    public MapSubscription<K,V> subscribe(long frompos, int buffersize)
+    {
+        lock(true);
+        //the changes of an update that's applied but not stamped are neither in the history nor pending
+        //for subscribers, so wait for its timestamp
+        while(unstamped)
+            stamped.awaitUninterruptibly();
+        MapSubscription<K,V> S = new MapSubscription<K,V>(this, frompos, buffersize);
+        if(frompos!=SMREngine.TIMESTAMP_INVALID && frompos<=super.getTimestamp())
+        {
+            List<MapChange<K,V>> backlog = (history==null ? null : history.changesSince(frompos, backingmap));
+            if(backlog==null)
+            {
+                unlock(true);
+                throw new RuntimeException("the changes of the map at position " + frompos + " are no longer retained");
+            }
+            //the backlog is buffered like live changes, so a backlog beyond the buffer cuts the subscription
+            //off at the first position that doesn't fit
+            Iterator<MapChange<K,V>> it = backlog.iterator();
+            while(it.hasNext())
+                S.deliver(it.next());
+        }
+        synchronized(subscribers)
+        {
+            subscribers.add(S);
+        }
+        unlock(true);
+        return S;
+    }
+
+    void unsubscribe(MapSubscription<K,V> S)
+    {
+        lock(true);
+        synchronized(subscribers)
+        {
+            subscribers.remove(S);
+        }
+        unlock(true);
+    }
+
+    //without lock-free mode, the history can only serve point reads to read-only transactions
+    void checkNotSnapshot()
+    {
+        if(!lockfree && TR.getSnapshotPosition()!=SMREngine.TIMESTAMP_INVALID)
+            throw new RuntimeException("only get and containsKey can be used in read-only transactions unless the map is lock-free");
+    }
+
+    //in lock-free mode, the state reads are served from: the published snapshot, or within a
+    //read-only transaction, the latest snapshot that precedes the position the transaction is pinned to.
+    //if the snapshots retained all follow it, the state is rolled back from the oldest one with the history
+    HashTrieMap<K,V> readState()
+    {
+        long pin = TR.getSnapshotPosition();
+        if(pin==SMREngine.TIMESTAMP_INVALID) return published.first;
+        Pair<HashTrieMap<K,V>, Long> oldest;
+        synchronized(versions)
+        {
+            Iterator<Pair<HashTrieMap<K,V>, Long>> it = versions.descendingIterator();
+            while(it.hasNext())
+            {
+                Pair<HashTrieMap<K,V>, Long> P = it.next();
+                if(P.second<pin) return P.first;
+            }
+            oldest = versions.getFirst();
+        }
+        List<VersionRecord<K,V>> undo = (history==null ? null : history.undoSince(pin, oldest.second));
+        if(undo==null) throw new RuntimeException("the state of the map at position " + pin + " is no longer retained");
+        //updates leave the tries they copy intact, so rolling back a copy doesn't change the snapshot
+        HashTrieMap<K,V> state = new HashTrieMap<K,V>(oldest.first.root, oldest.first.count, false);
+        for(VersionRecord<K,V> R : undo)
+        {
+            if(R.present)
+                state.put(R.key, R.val);
+            else
+                state.remove(R.key);
+        }
+        Pair<HashTrieMap<K,V>, Long> rebuilt = new Pair<HashTrieMap<K,V>, Long>(state.snapshot(), pin - 1);
+        //kept for the other reads of the transaction; it's the oldest version, and is retained while pinned
+        synchronized(versions)
+        {
+            if(versions.getFirst()==oldest)
+                versions.addFirst(rebuilt);
+        }
+        return rebuilt.first;
+    }
+
+    /**
+     * Returns the version of the bucket the key hashes to, which changes with every update to
+     * any key in the bucket.
+     */
+    @Override
+    public long getTimestamp(Object key)
+    {
+        return keyversions.get(bucket(key));
+    }
+
+    //no key has been written yet, so writes at any log position, 0 included, are newer
+    void resetKeyVersions()
+    {
+        for(int i=0;i<KEY_BUCKETS;i++)
+            keyversions.set(i, SMREngine.TIMESTAMP_INVALID);
+    }
+
+    static int bucket(Object key)
+    {
+        int h = (key==null ? 0 : key.hashCode());
+        h ^= (h >>> 16);
+        return h & (KEY_BUCKETS - 1);
+    }
+
+    public Serializable getState()
+    {
+        lock(true);
+        MapState<K,V> x = new MapState<K,V>();
+        x.entries = new HashMap<K,V>(backingmap);
+        x.keyversions = new long[KEY_BUCKETS];
+        for(int i=0;i<KEY_BUCKETS;i++)
+            x.keyversions[i] = keyversions.get(i);
+        unlock(true);
+        return x;
+    }
+
+    public void setState(Object state)
+    {
+        MapState<K,V> x = (MapState<K,V>)state;
+        lock(true);
+        if(lockfree)
+        {
+            backingmap = new HashTrieMap<K,V>(x.entries);
+            //the earlier versions don't lead up to the new state; it's published by the following setTimestamp
+            synchronized(versions)
+            {
+                versions.clear();
+            }
+        }
+        else
+            backingmap = x.entries;
+        //the buckets keep the versions they had when the checkpoint was taken, rather than
+        //all being stamped with its position
+        for(int i=0;i<KEY_BUCKETS;i++)
+            keyversions.set(i, x.keyversions[i]);
+        touchedbuckets.clear();
+        touchedall = false;
+        reindex();
+        cutSubscribers();
+        historyreset = true;
+        snapshot = null;
+        resetDelta(0);
+        unlock(true);
+    }
+
+    /**
+     * Maps with subscriptions aren't evicted, since the subscriptions would miss the updates
+     * played back while the map is out of memory.
+     */
+    @Override
+    public boolean isEvictable()
+    {
+        synchronized(subscribers)
+        {
+            return subscribers.isEmpty();
+        }
+    }
+
+    public void releaseState()
+    {
+        lock(true);
+        if(lockfree)
+        {
+            backingmap = new HashTrieMap<K,V>();
+            published = new Pair<HashTrieMap<K,V>, Long>(((HashTrieMap<K,V>)backingmap).snapshot(), SMREngine.TIMESTAMP_INVALID);
+            synchronized(versions)
+            {
+                versions.clear();
+            }
+        }
+        else
+            backingmap = new HashMap<K,V>();
+        //rehydration restores them from the checkpoint and the log
+        resetKeyVersions();
+        reindex();
+        snapshot = null;
+        unlock(true);
+    }
+
+    public Serializable getDelta()
+    {
+        lock(true);
+        //a full checkpoint is due, or would be about as large as the delta anyway
+        if(!hasbase || numdeltas>=maxdeltas || dirtycleared || dirtykeys.size()>backingmap.size()/2)
+        {
+            unlock(true);
+            return null;
+        }
+        MapDelta<K,V> x = new MapDelta<K,V>();
+        Iterator<K> it = dirtykeys.iterator();
+        while(it.hasNext())
+        {
+            K key = it.next();
+            if(backingmap.containsKey(key))
+                x.puts.put(key, backingmap.get(key));
+            else
+                x.removes.add(key);
+            //every bucket changed since the last checkpoint holds a dirty key
+            int b = bucket(key);
+            x.keyversions.put(b, keyversions.get(b));
+        }
+        unlock(true);
+        return x;
+    }
+
+    @Override
+    public void checkpointed(boolean delta)
+    {
+        lock(true);
+        resetDelta(delta ? numdeltas+1 : 0);
+        unlock(true);
+    }
+
+    public void mergeDelta(Object delta)
+    {
+        MapDelta<K,V> x = (MapDelta<K,V>)delta;
+        lock(true);
+        Iterator<K> it = x.puts.keySet().iterator();
+        while(it.hasNext())
+            unindex(it.next());
+        backingmap.putAll(x.puts);
+        it = x.puts.keySet().iterator();
+        while(it.hasNext())
+            index(it.next());
+        it = x.removes.iterator();
+        while(it.hasNext())
+        {
+            K key = it.next();
+            unindex(key);
+            backingmap.remove(key);
+        }
+        Iterator<Entry<Integer, Long>> bit = x.keyversions.entrySet().iterator();
+        while(bit.hasNext())
+        {
+            Entry<Integer, Long> e = bit.next();
+            keyversions.set(e.getKey(), e.getValue());
+        }
+        touchedbuckets.clear();
+        touchedall = false;
+        cutSubscribers();
+        historyreset = true;
+        snapshot = null;
+        resetDelta(numdeltas+1);
+        unlock(true);
+    }
+
+    /**
+     * Adds a secondary index over the values of the map, which getByIndex can then look up
+     * entries by. The index is built from the current state of the map and then maintained
+     * as updates are applied. It's local to this client: every client that wants to query
+     * the index has to add it.
+     *
+     * @param name the name to look the index up by
+     * @param extractor computes the index key of an entry; must be deterministic
+     */
+    public void addIndex(String name, IndexExtractor<K,V> extractor)
+    {
+        lock(true);
+        if(indexes.containsKey(name))
+        {
+            unlock(true);
+            throw new RuntimeException("index " + name + " already exists");
+        }
+        MapIndex<K,V> ix = new MapIndex<K,V>(extractor);
+        Iterator<Entry<K,V>> it = backingmap.entrySet().iterator();
+        while(it.hasNext())
+        {
+            Entry<K,V> e = it.next();
+            ix.add(e.getKey(), e.getValue());
+        }
+        indexes.put(name, ix);
+        unlock(true);
+    }
+
+    public void removeIndex(String name)
+    {
+        lock(true);
+        indexes.remove(name);
+        unlock(true);
+    }
+
+    /**
+     * Returns the entries whose index key in the named index equals the passed in one, as of a
+     * linearizable read of the map. The result is a copy and doesn't reflect later updates.
+     * In lock-free mode this still takes the read lock, since the indexes aren't versioned.
+     */
+    public Map<K, V> getByIndex(String name, Object indexkey)
+    {
+        TR.query_helper(this);
+        if(TR.getSnapshotPosition()!=SMREngine.TIMESTAMP_INVALID)
+            throw new RuntimeException("indexes can't be read in a read-only transaction");
+        lock();
+        MapIndex<K,V> ix = indexes.get(name);
+        if(ix==null)
+        {
+            unlock();
+            throw new RuntimeException("no index named " + name);
+        }
+        HashMap<K,V> x = new HashMap<K,V>();
+        Set<K> keys = ix.entries.get(indexkey);
+        if(keys!=null)
+        {
+            Iterator<K> it = keys.iterator();
+            while(it.hasNext())
+            {
+                K key = it.next();
+                x.put(key, backingmap.get(key));
+            }
+        }
+        unlock();
+        return x;
+    }
+
+    //the following are called with the write lock held, around changes to the entry of a key
+
+    void unindex(K key)
+    {
+        if(indexes.isEmpty() || !backingmap.containsKey(key)) return;
+        V val = backingmap.get(key);
+        Iterator<MapIndex<K,V>> it = indexes.values().iterator();
+        while(it.hasNext())
+            it.next().remove(key, val);
+    }
+
+    void index(K key)
+    {
+        if(indexes.isEmpty() || !backingmap.containsKey(key)) return;
+        V val = backingmap.get(key);
+        Iterator<MapIndex<K,V>> it = indexes.values().iterator();
+        while(it.hasNext())
+            it.next().add(key, val);
+    }
+
+    void reindex()
+    {
+        Iterator<MapIndex<K,V>> it = indexes.values().iterator();
+        while(it.hasNext())
+        {
+            MapIndex<K,V> ix = it.next();
+            ix.entries.clear();
+            Iterator<Entry<K,V>> it2 = backingmap.entrySet().iterator();
+            while(it2.hasNext())
+            {
+                Entry<K,V> e = it2.next();
+                ix.add(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    //called with the write lock held, by the apply thread, after an update changes the key
+    void markDirty(K key)
+    {
+        if(!hasbase || dirtycleared) return;
+        dirtykeys.add(key);
+        //past this, getDelta asks for a full checkpoint anyway
+        if(dirtykeys.size()>backingmap.size()/2)
+        {
+            dirtykeys = new HashSet<K>();
+            dirtycleared = true;
+        }
+    }
+
+    //called with the write lock held, once the current state is covered by a checkpoint
+    void resetDelta(int tnumdeltas)
+    {
+        dirtykeys = new HashSet<K>();
+        dirtycleared = false;
+        hasbase = true;
+        numdeltas = tnumdeltas;
+    }
+
     @Override
     public int size()
     {
         TR.query_helper(this);
+        checkNotSnapshot();
         //what if the value changes between query_helper and the actual read?
         //in the linearizable case, we are safe because we see a later version that strictly required
         //in the transactional case, the tx will spuriously abort, but safety will not be violated...
+        if(lockfree) return readState().size();
         lock();
         int x = backingmap.size();
         unlock();
@@ -81,6 +800,8 @@ public class CorfuDBMap<K,V> extends CorfuDBObject implements Map<K,V>
     public boolean isEmpty()
     {
         TR.query_helper(this);
+        checkNotSnapshot();
+        if(lockfree) return readState().isEmpty();
         lock();
         boolean x = backingmap.isEmpty();
         unlock();
@@ -90,7 +811,10 @@ public class CorfuDBMap<K,V> extends CorfuDBObject implements Map<K,V>
     @Override
     public boolean containsKey(Object o)
     {
-        TR.query_helper(this);
+        TR.query_helper(this, (Serializable)o);
+        if(lockfree) return readState().containsKey(o);
+        if(TR.getSnapshotPosition()!=SMREngine.TIMESTAMP_INVALID)
+            return versionAt((K)o, TR.getSnapshotPosition()).present;
         lock();
         boolean x = backingmap.containsKey(o);
         unlock();
@@ -101,6 +825,8 @@ public class CorfuDBMap<K,V> extends CorfuDBObject implements Map<K,V>
     public boolean containsValue(Object o)
     {
         TR.query_helper(this);
+        checkNotSnapshot();
+        if(lockfree) return readState().containsValue(o);
         lock();
         boolean x = backingmap.containsValue(o);
         unlock();
@@ -110,7 +836,10 @@ public class CorfuDBMap<K,V> extends CorfuDBObject implements Map<K,V>
     @Override
     public V get(Object o)
     {
-        TR.query_helper(this);
+        TR.query_helper(this, (Serializable)o);
+        if(lockfree) return readState().get(o);
+        if(TR.getSnapshotPosition()!=SMREngine.TIMESTAMP_INVALID)
+            return versionAt((K)o, TR.getSnapshotPosition()).val;
         lock();
         V x = backingmap.get(o);
         unlock();
@@ -122,7 +851,7 @@ public class CorfuDBMap<K,V> extends CorfuDBObject implements Map<K,V>
         HashSet<Long> H = new HashSet<Long>();
         H.add(this.getID());
         MapCommand<K,V> precmd = new MapCommand<K,V>(MapCommand.CMD_PREPUT, key);
-        TR.query_then_update_helper(this, precmd, new MapCommand<K, V>(MapCommand.CMD_PUT, key, val));
+        TR.query_then_update_helper(this, precmd, new MapCommand<K, V>(MapCommand.CMD_PUT, key, val), (Serializable)key);
         return (V)precmd.getReturnValue();
     }
 
@@ -133,14 +862,57 @@ public class CorfuDBMap<K,V> extends CorfuDBObject implements Map<K,V>
         HashSet<Long> H = new HashSet<Long>();
         H.add(this.getID());
         MapCommand<K,V> precmd = new MapCommand<K,V>(MapCommand.CMD_PREPUT, (K)o);
-        TR.query_then_update_helper(this, precmd, new MapCommand<K, V>(MapCommand.CMD_REMOVE, (K) o));
+        TR.query_then_update_helper(this, precmd, new MapCommand<K, V>(MapCommand.CMD_REMOVE, (K) o), (Serializable)o);
         return (V)precmd.getReturnValue();
     }
 
+    /**
+     * Puts a value without returning the previous one. Unlike put, this doesn't wait for the map
+     * to be played back to the update; it returns as soon as the update is appended.
+     */
+    public void blindPut(K key, V val)
+    {
+        TR.update_helper(this, new MapCommand<K, V>(MapCommand.CMD_PUT, key, val));
+    }
+
+    /**
+     * Puts a value without waiting for the update to be appended. Updates issued through the
+     * async methods of a map are appended in the order they were issued.
+     *
+     * @return a future for the log position of the update, completed once it is appended
+     */
+    public Future<Long> putAsync(K key, V val)
+    {
+        return putAsync(key, val, false);
+    }
+
+    /**
+     * @param applied whether the returned future completes once the update is applied to
+     *                the map, rather than once it is appended
+     */
+    public Future<Long> putAsync(K key, V val, boolean applied)
+    {
+        return TR.update_helper_async(this, new MapCommand<K, V>(MapCommand.CMD_PUT, key, val), applied);
+    }
+
+    public Future<Long> removeAsync(Object o)
+    {
+        return removeAsync(o, false);
+    }
+
+    public Future<Long> removeAsync(Object o, boolean applied)
+    {
+        return TR.update_helper_async(this, new MapCommand<K, V>(MapCommand.CMD_REMOVE, (K) o), applied);
+    }
+
+    /**
+     * Puts all entries of the passed in map with a single update, so they cost one log append
+     * and become visible atomically.
+     */
     @Override
     public void putAll(Map<? extends K, ? extends V> map)
     {
-        throw new RuntimeException("unimplemented");
+        TR.update_helper(this, new MapCommand<K, V>(MapCommand.CMD_PUTALL, new HashMap<K, V>(map)));
     }
 
     @Override
@@ -152,27 +924,113 @@ public class CorfuDBMap<K,V> extends CorfuDBObject implements Map<K,V>
         TR.update_helper(this, new MapCommand<K, V>(MapCommand.CMD_CLEAR));
     }
 
+    /**
+     * Returns a read-only snapshot of the keys, as of a single linearizable read of the map.
+     * The snapshot doesn't reflect later updates.
+     */
     @Override
     public Set<K> keySet()
     {
-        throw new RuntimeException("unimplemented");
+        return getSnapshot().keySet();
     }
 
+    /**
+     * Returns a read-only snapshot of the values; see keySet.
+     */
     @Override
     public Collection<V> values()
     {
-        throw new RuntimeException("unimplemented");
-
+        return getSnapshot().values();
     }
 
+    /**
+     * Returns a read-only snapshot of the entries; see keySet.
+     */
     @Override
     public Set<Entry<K, V>> entrySet()
     {
-        throw new RuntimeException("unimplemented");
+        return getSnapshot().entrySet();
+    }
+
+    //syncs once, then hands out a copy of the map that stays stable while the caller iterates over it
+    Map<K, V> getSnapshot()
+    {
+        TR.query_helper(this);
+        checkNotSnapshot();
+        if(lockfree) return readState();
+        lock();
+        Map<K, V> x = snapshot;
+        if(x==null)
+        {
+            //concurrent readers may both build a copy; either one is fine, since the map can't change under the read lock
+            x = Collections.unmodifiableMap(new HashMap<K, V>(backingmap));
+            snapshot = x;
+        }
+        unlock();
+        return x;
+    }
+
+}
+
+
+/**
+ * Secondary index of a CorfuDBMap, from index keys to the map keys of the entries that have them.
+ */
+class MapIndex<K,V>
+{
+    CorfuDBMap.IndexExtractor<K,V> extractor;
+    HashMap<Object, Set<K>> entries = new HashMap<Object, Set<K>>();
+
+    MapIndex(CorfuDBMap.IndexExtractor<K,V> textractor)
+    {
+        extractor = textractor;
+    }
+
+    void add(K key, V val)
+    {
+        Object ixkey = extractor.extract(key, val);
+        if(ixkey==null) return;
+        Set<K> keys = entries.get(ixkey);
+        if(keys==null)
+        {
+            keys = new HashSet<K>();
+            entries.put(ixkey, keys);
+        }
+        keys.add(key);
+    }
+
+    void remove(K key, V val)
+    {
+        Object ixkey = extractor.extract(key, val);
+        if(ixkey==null) return;
+        Set<K> keys = entries.get(ixkey);
+        if(keys==null) return;
+        keys.remove(key);
+        if(keys.isEmpty())
+            entries.remove(ixkey);
     }
+}
 
+/**
+ * Changes to a CorfuDBMap between two checkpoints, as stored in a delta checkpoint.
+ */
+class MapDelta<K,V> implements Serializable
+{
+    HashMap<K,V> puts = new HashMap<K,V>();
+    HashSet<K> removes = new HashSet<K>();
+    //versions of the buckets the changes fall in
+    HashMap<Integer, Long> keyversions = new HashMap<Integer, Long>();
 }
 
+/**
+ * The state of a CorfuDBMap as stored in a full checkpoint.
+ */
+class MapState<K,V> implements Serializable
+{
+    HashMap<K,V> entries;
+    //versions of the key buckets, indexed by bucket
+    long[] keyversions;
+}
 
 class MapCommand<K,V> implements Serializable
 {
@@ -181,8 +1039,10 @@ class MapCommand<K,V> implements Serializable
     static final int CMD_PREPUT = 1;
     static final int CMD_REMOVE = 2;
     static final int CMD_CLEAR = 3;
+    static final int CMD_PUTALL = 4;
     K key;
     V val;
+    HashMap<K,V> entries;
     public K getKey()
     {
         return key;
@@ -191,6 +1051,10 @@ class MapCommand<K,V> implements Serializable
     {
         return val;
     }
+    public Map<K,V> getEntries()
+    {
+        return entries;
+    }
     Object retval;
     public Object getReturnValue()
     {
@@ -215,6 +1079,11 @@ class MapCommand<K,V> implements Serializable
         key = tkey;
         val = tval;
     }
+    public MapCommand(int tcmdtype, HashMap<K,V> tentries)
+    {
+        cmdtype = tcmdtype;
+        entries = tentries;
+    }
     public int getCmdType()
     {
         return cmdtype;
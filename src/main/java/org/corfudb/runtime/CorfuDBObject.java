@@ -14,6 +14,7 @@
  */
 package org.corfudb.runtime;
 
+import java.io.Serializable;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 
@@ -30,6 +31,35 @@ public abstract class CorfuDBObject
     AbstractRuntime TR;
 
     AtomicLong timestamp;
+    //timestamp of the last update that isn't a CommutativeUpdate, which commutative reads validate against
+    AtomicLong exclusivetimestamp;
+
+    /**
+     * Marker for updates that commute with each other, such as counter increments. Apply merges
+     * them into whatever state playback has reached (e.g., adds one to the counter), and they
+     * don't conflict with each other: a transaction that reads the object through
+     * AbstractRuntime.query_helper_commutative, or pairs a commutative update with a query,
+     * only validates against the updates that aren't commutative (see getExclusiveTimestamp).
+     * The value it reads may then miss commutative updates that commit concurrently, i.e., it
+     * acts on the value as a base that the commutative updates are merged into as deltas.
+     * Plain reads still conflict with every update.
+     */
+    public interface CommutativeUpdate extends Serializable
+    {
+    }
+
+    /**
+     * Read modes, which control how far the runtime syncs an object before a read outside
+     * of a transaction. READ_LINEARIZABLE syncs with the current tail of the stream on every
+     * read. READ_BOUNDED skips the sync if the object has been played back to a tail checked
+     * at most maxstaleness milliseconds ago. READ_LOCAL never syncs, and reads whatever state
+     * playback has reached.
+     */
+    public static final int READ_LINEARIZABLE = 0;
+    public static final int READ_BOUNDED = 1;
+    public static final int READ_LOCAL = 2;
+    volatile int readmode = READ_LINEARIZABLE;
+    volatile long maxstaleness = 0;
 
     public long getTimestamp()
     {
@@ -41,6 +71,59 @@ public abstract class CorfuDBObject
         timestamp.set(newts);
     }
 
+    /**
+     * Returns the timestamp of the last update to the object that isn't a CommutativeUpdate.
+     */
+    public long getExclusiveTimestamp()
+    {
+        return exclusivetimestamp.get();
+    }
+
+    public void setExclusiveTimestamp(long newts)
+    {
+        exclusivetimestamp.set(newts);
+    }
+
+    /**
+     * Returns the version of the part of the object state under the given key, i.e., the timestamp
+     * of the last update that may have changed it. Transactions that only read that key validate
+     * against this version instead of the object timestamp. Objects that don't track versions
+     * per key return the object timestamp, so that a read of any key conflicts with every update.
+     *
+     * @param key the key, as passed to AbstractRuntime.query_helper
+     * @return the version of the key
+     */
+    public long getTimestamp(Object key)
+    {
+        return getTimestamp();
+    }
+
+    public int getReadMode()
+    {
+        return readmode;
+    }
+
+    public long getMaxStaleness()
+    {
+        return maxstaleness;
+    }
+
+    public void setReadMode(int treadmode)
+    {
+        setReadMode(treadmode, 0);
+    }
+
+    /**
+     * @param treadmode one of READ_LINEARIZABLE, READ_BOUNDED and READ_LOCAL
+     * @param tmaxstaleness for READ_BOUNDED, how old in milliseconds the state read may be
+     */
+    public void setReadMode(int treadmode, long tmaxstaleness)
+    {
+        if(treadmode<READ_LINEARIZABLE || treadmode>READ_LOCAL) throw new RuntimeException("unknown read mode " + treadmode);
+        maxstaleness = tmaxstaleness;
+        readmode = treadmode;
+    }
+
     public void lock()
     {
         lock(false);
@@ -65,6 +148,90 @@ public abstract class CorfuDBObject
 
     abstract public void apply(Object update);
 
+    /**
+     * Returns a serializable copy of the object state, used by the runtime to checkpoint
+     * the object. The runtime calls this in between applies.
+     *
+     * @return the current object state
+     */
+    public Serializable getState()
+    {
+        throw new RuntimeException("object does not support checkpoints");
+    }
+
+    /**
+     * Replaces the object state with one previously returned by getState. The runtime calls
+     * this when it restores the object from a checkpoint, before any apply upcall.
+     *
+     * @param state the checkpointed object state
+     */
+    public void setState(Object state)
+    {
+        throw new RuntimeException("object does not support checkpoints");
+    }
+
+    /**
+     * Returns the changes to the object state since the last checkpoint was taken or restored
+     * (i.e., since the last call to checkpointed, setState or mergeDelta), for use in an
+     * incremental checkpoint. Objects that don't track their changes, or that want a full
+     * checkpoint to be taken instead, return null.
+     *
+     * @return the changes since the last checkpoint, or null
+     */
+    public Serializable getDelta()
+    {
+        return null;
+    }
+
+    /**
+     * Called once a checkpoint of the state last returned by getState or getDelta has been
+     * appended to the log, before any further update is applied.
+     *
+     * @param delta whether the checkpoint holds a delta returned by getDelta
+     */
+    public void checkpointed(boolean delta)
+    {
+    }
+
+    /**
+     * Applies changes previously returned by getDelta on top of the current object state.
+     *
+     * @param delta the checkpointed changes
+     */
+    public void mergeDelta(Object delta)
+    {
+        throw new RuntimeException("object does not support delta checkpoints");
+    }
+
+    /**
+     * Returns whether the runtime can evict the object from memory when it's not in use: it then
+     * checkpoints the object, drops its state with releaseState, and restores it from the
+     * checkpoint (with setState and mergeDelta) the next time the object is accessed.
+     */
+    public boolean isEvictable()
+    {
+        return false;
+    }
+
+    /**
+     * Drops the object state, to free its memory once the runtime has checkpointed it. The state
+     * is restored before the object is read or updated again.
+     */
+    public void releaseState()
+    {
+        throw new RuntimeException("object does not support eviction");
+    }
+
+    /**
+     * Returns whether the object can serve reads as of an earlier log position, which is
+     * required to read it in a read-only transaction (see AbstractRuntime.BeginTX(boolean)).
+     * Such objects check AbstractRuntime.getSnapshotPosition in their accessors.
+     */
+    public boolean supportsSnapshots()
+    {
+        return false;
+    }
+
     public long getID()
     {
         return oid;
@@ -74,7 +241,9 @@ public abstract class CorfuDBObject
     {
         TR = tTR;
         oid = tobjectid;
-        timestamp = new AtomicLong();
+        //no update precedes the initial state, not even one at position 0
+        timestamp = new AtomicLong(SMREngine.TIMESTAMP_INVALID);
+        exclusivetimestamp = new AtomicLong(SMREngine.TIMESTAMP_INVALID);
     }
 
 }
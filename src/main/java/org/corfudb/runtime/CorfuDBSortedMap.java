@@ -0,0 +1,256 @@
+/**
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.corfudb.runtime;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A CorfuDB map that keeps its keys sorted, backed by a concurrent skip list. Range queries
+ * (subMap, headMap, tailMap and the collection views) sync once and return a read-only copy
+ * of the range as of a single log position, which doesn't change as later updates are played
+ * back or the state is restored. Keys can't be null.
+ */
+public class CorfuDBSortedMap<K,V> extends CorfuDBObject implements SortedMap<K,V>
+{
+    //backing state of the map; replaced rather than refilled when the state is restored, so
+    //readers never see it half-built
+    volatile ConcurrentSkipListMap<K, V> backingmap;
+
+    public CorfuDBSortedMap(AbstractRuntime tTR, long toid)
+    {
+        this(tTR, toid, null);
+    }
+
+    public CorfuDBSortedMap(AbstractRuntime tTR, long toid, Comparator<? super K> comparator)
+    {
+        super(tTR, toid);
+        maplock = new ReentrantReadWriteLock();
+        backingmap = new ConcurrentSkipListMap<K,V>(comparator);
+        TR = tTR;
+        oid = toid;
+        TR.registerObject(this);
+    }
+
+    public void apply(Object bs)
+    {
+        MapCommand<K,V> cc = (MapCommand<K,V>)bs;
+        maplock.writeLock().lock();
+        if(cc.getCmdType()==MapCommand.CMD_PUT)
+        {
+            backingmap.put(cc.getKey(), cc.getVal());
+        }
+        else if(cc.getCmdType()==MapCommand.CMD_PREPUT)
+        {
+            cc.setReturnValue(backingmap.get(cc.getKey()));
+        }
+        else if(cc.getCmdType()==MapCommand.CMD_REMOVE)
+        {
+            backingmap.remove(cc.getKey());
+        }
+        else if(cc.getCmdType()==MapCommand.CMD_CLEAR)
+        {
+            backingmap.clear();
+        }
+        else if(cc.getCmdType()==MapCommand.CMD_PUTALL)
+        {
+            backingmap.putAll(cc.getEntries());
+        }
+        else
+        {
+            maplock.writeLock().unlock();
+            throw new RuntimeException("Unrecognized command in stream!");
+        }
+        maplock.writeLock().unlock();
+    }
+
+    public Serializable getState()
+    {
+        lock();
+        TreeMap<K,V> x = new TreeMap<K,V>(backingmap);
+        unlock();
+        return x;
+    }
+
+    public void setState(Object state)
+    {
+        ConcurrentSkipListMap<K,V> x = new ConcurrentSkipListMap<K,V>(backingmap.comparator());
+        x.putAll((TreeMap<K,V>)state);
+        lock(true);
+        backingmap = x;
+        unlock(true);
+    }
+
+    //point reads don't need maplock, since the skip list is safe for concurrent access; ranges are copied
+    //under the read lock, which keeps apply out, so the copy reflects whole updates. a null bound is open
+    SortedMap<K, V> snapshotOf(K fromKey, K toKey)
+    {
+        lock();
+        try
+        {
+            ConcurrentSkipListMap<K, V> x = backingmap;
+            SortedMap<K, V> range = x;
+            if(fromKey!=null && toKey!=null)
+                range = x.subMap(fromKey, toKey);
+            else if(fromKey!=null)
+                range = x.tailMap(fromKey);
+            else if(toKey!=null)
+                range = x.headMap(toKey);
+            TreeMap<K, V> copy = new TreeMap<K, V>(x.comparator());
+            copy.putAll(range);
+            return Collections.unmodifiableSortedMap(copy);
+        }
+        finally
+        {
+            unlock();
+        }
+    }
+
+    @Override
+    public Comparator<? super K> comparator()
+    {
+        return backingmap.comparator();
+    }
+
+    @Override
+    public SortedMap<K, V> subMap(K fromKey, K toKey)
+    {
+        TR.query_helper(this);
+        if(fromKey==null || toKey==null) throw new NullPointerException();
+        return snapshotOf(fromKey, toKey);
+    }
+
+    @Override
+    public SortedMap<K, V> headMap(K toKey)
+    {
+        TR.query_helper(this);
+        if(toKey==null) throw new NullPointerException();
+        return snapshotOf(null, toKey);
+    }
+
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey)
+    {
+        TR.query_helper(this);
+        if(fromKey==null) throw new NullPointerException();
+        return snapshotOf(fromKey, null);
+    }
+
+    @Override
+    public K firstKey()
+    {
+        TR.query_helper(this);
+        return backingmap.firstKey();
+    }
+
+    @Override
+    public K lastKey()
+    {
+        TR.query_helper(this);
+        return backingmap.lastKey();
+    }
+
+    @Override
+    public int size()
+    {
+        TR.query_helper(this);
+        //the skip list counts its entries by traversing them
+        lock();
+        int x = backingmap.size();
+        unlock();
+        return x;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        TR.query_helper(this);
+        return backingmap.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object o)
+    {
+        TR.query_helper(this);
+        return backingmap.containsKey(o);
+    }
+
+    @Override
+    public boolean containsValue(Object o)
+    {
+        TR.query_helper(this);
+        lock();
+        boolean x = backingmap.containsValue(o);
+        unlock();
+        return x;
+    }
+
+    @Override
+    public V get(Object o)
+    {
+        TR.query_helper(this);
+        return backingmap.get(o);
+    }
+
+    public V put(K key, V val)
+    {
+        MapCommand<K,V> precmd = new MapCommand<K,V>(MapCommand.CMD_PREPUT, key);
+        TR.query_then_update_helper(this, precmd, new MapCommand<K, V>(MapCommand.CMD_PUT, key, val));
+        return (V)precmd.getReturnValue();
+    }
+
+    @Override
+    public V remove(Object o)
+    {
+        MapCommand<K,V> precmd = new MapCommand<K,V>(MapCommand.CMD_PREPUT, (K)o);
+        TR.query_then_update_helper(this, precmd, new MapCommand<K, V>(MapCommand.CMD_REMOVE, (K) o));
+        return (V)precmd.getReturnValue();
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> map)
+    {
+        TR.update_helper(this, new MapCommand<K, V>(MapCommand.CMD_PUTALL, new HashMap<K, V>(map)));
+    }
+
+    @Override
+    public void clear()
+    {
+        TR.update_helper(this, new MapCommand<K, V>(MapCommand.CMD_CLEAR));
+    }
+
+    @Override
+    public Set<K> keySet()
+    {
+        TR.query_helper(this);
+        return snapshotOf(null, null).keySet();
+    }
+
+    @Override
+    public Collection<V> values()
+    {
+        TR.query_helper(this);
+        return snapshotOf(null, null).values();
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet()
+    {
+        TR.query_helper(this);
+        return snapshotOf(null, null).entrySet();
+    }
+}
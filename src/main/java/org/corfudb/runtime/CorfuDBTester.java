@@ -44,7 +44,7 @@ public class CorfuDBTester
 
         if (args.length == 0)
         {
-            System.out.println("usage: java CorfuDBTester masterURL [0==TXTest(default)|1==LinearizableTest");
+            System.out.println("usage: java CorfuDBTester masterURL [0==TXTest(default)|1==LinearizableTest|2==EvictionTest|3==KeyVersionTest|4==CommutativeTest|5==CheckpointTrimTest|6==SubscriptionTest");
             System.out.println("e.g. masterURL: http://localhost:8000/corfu");
             return;
         }
@@ -53,6 +53,11 @@ public class CorfuDBTester
 
         final int TXTEST=0;
         final int LINTEST=1;
+        final int EVICTTEST=2;
+        final int KEYVERSIONTEST=3;
+        final int COMMUTETEST=4;
+        final int TRIMTEST=5;
+        final int SUBSCRIBETEST=6;
 
 
         int testnum = TXTEST;
@@ -78,7 +83,7 @@ public class CorfuDBTester
 
         if(testnum==LINTEST)
         {
-            SimpleRuntime TR = new SimpleRuntime(new StreamFactoryImpl(new CorfuLogAddressSpace(crf), new CorfuStreamingSequencer(crf)));
+            SimpleRuntime TR = new SimpleRuntime(new StreamFactoryImpl(new CorfuLogAddressSpace(crf, masternode), new CorfuStreamingSequencer(crf)));
             CorfuDBMap<Integer, Integer> cob1 = new CorfuDBMap<Integer, Integer>(TR, 2345);
             numthreads = 2;
             Thread[] threads = new Thread[numthreads];
@@ -120,6 +125,172 @@ public class CorfuDBTester
                 System.out.println("Consistency check failed!");
         }
 
+        else if(testnum==EVICTTEST)
+        {
+            //objects evicted from the cache are rehydrated before any read, transactional or local,
+            //and reads only keep an object from being evicted for a bounded time
+            TXRuntime TR = new TXRuntime(new StreamFactoryImpl(new CorfuLogAddressSpace(crf, masternode), new CorfuStreamingSequencer(crf)));
+            TR.setCacheSize(1);
+            CorfuDBMap<Integer, Integer> cob1 = new CorfuDBMap<Integer, Integer>(TR, 3001);
+            CorfuDBMap<Integer, Integer> cob2 = new CorfuDBMap<Integer, Integer>(TR, 3002);
+            cob1.put(1, 10);
+            //updates don't hold the object, so this evicts cob1
+            cob2.put(1, 20);
+            check(!TR.enginemap.containsKey(3001L), "cob1 evicted");
+            TR.BeginTX();
+            int x = cob1.get(1);
+            cob1.put(2, x);
+            check(TR.EndTX(), "transaction on a rehydrated object commits");
+            check(x==10, "transactional read of a rehydrated object");
+            check(cob1.get(2)==10, "transactional update of a rehydrated object");
+            cob2.setReadMode(CorfuDBObject.READ_LOCAL);
+            check(cob2.get(1)==20, "local read of a rehydrated object");
+            //once the holds of the reads above expire, the cache shrinks back to its bound
+            Thread.sleep(SimpleRuntime.READ_HOLD_MS * 2);
+            CorfuDBMap<Integer, Integer> cob3 = new CorfuDBMap<Integer, Integer>(TR, 3003);
+            check(TR.enginemap.size()==1, "read holds expire");
+            System.out.println("Eviction test successful!");
+        }
+        else if(testnum==KEYVERSIONTEST)
+        {
+            //a client that restores a map from a checkpoint sees the same key versions as one that
+            //played back the log, so both validate transactions the same way
+            TXRuntime TR1 = new TXRuntime(new StreamFactoryImpl(new CorfuLogAddressSpace(crf, masternode), new CorfuStreamingSequencer(crf)));
+            CorfuDBMap<Integer, Integer> cob1 = new CorfuDBMap<Integer, Integer>(TR1, 3101);
+            for(int i=0;i<10;i++)
+                cob1.put(i, i);
+            TR1.checkpoint(cob1);
+            cob1.put(0, 100);
+            cob1.get(0);
+            TXRuntime TR2 = new TXRuntime(new StreamFactoryImpl(new CorfuLogAddressSpace(crf, masternode), new CorfuStreamingSequencer(crf)));
+            CorfuDBMap<Integer, Integer> cob2 = new CorfuDBMap<Integer, Integer>(TR2, 3101);
+            check(cob2.get(0)==100, "restored map is up to date");
+            boolean same = true;
+            for(int i=0;i<2*CorfuDBMap.KEY_BUCKETS;i++)
+                same &= cob1.getTimestamp(i)==cob2.getTimestamp(i);
+            check(same, "restored key versions match played back ones");
+            CorfuDBMap<Integer, Integer> cob3 = new CorfuDBMap<Integer, Integer>(TR2, 3102);
+            check(cob3.getTimestamp(0)==SMREngine.TIMESTAMP_INVALID, "unwritten keys have no version");
+            //a transaction that reads a key written before the checkpoint, and races with a write to
+            //another key, commits on both clients
+            TR1.BeginTX();
+            int a = cob1.get(5);
+            TR2.BeginTX();
+            int b = cob2.get(5);
+            cob1.put(6, a);
+            cob2.put(7, b);
+            check(TR1.EndTX(), "transaction on the played back map commits");
+            check(TR2.EndTX(), "transaction on the restored map commits");
+            //and one that read a key which changed since aborts
+            TR2.BeginTX();
+            cob2.get(6);
+            cob1.put(6, 0);
+            cob2.put(8, 0);
+            check(!TR2.EndTX(), "transaction on a changed key aborts");
+            System.out.println("Key version test successful!");
+        }
+        else if(testnum==COMMUTETEST)
+        {
+            //two clients that concurrently read and increment a counter both commit, as long as
+            //they read it commutatively
+            TXRuntime TR1 = new TXRuntime(new StreamFactoryImpl(new CorfuLogAddressSpace(crf, masternode), new CorfuStreamingSequencer(crf)));
+            TXRuntime TR2 = new TXRuntime(new StreamFactoryImpl(new CorfuLogAddressSpace(crf, masternode), new CorfuStreamingSequencer(crf)));
+            CorfuDBCounter ctr1 = new CorfuDBCounter(TR1, 3201);
+            CorfuDBCounter ctr2 = new CorfuDBCounter(TR2, 3201);
+            TR1.BeginTX();
+            TR2.BeginTX();
+            check(ctr1.readCommutative()==0 && ctr2.readCommutative()==0, "both clients read the initial value");
+            ctr1.increment();
+            ctr2.increment();
+            check(TR1.EndTX(), "first commutative transaction commits");
+            check(TR2.EndTX(), "concurrent commutative transaction commits");
+            check(ctr1.read()==2 && ctr2.read()==2, "both increments are merged");
+            //a plain read still conflicts with concurrent increments
+            TR2.BeginTX();
+            ctr2.read();
+            ctr2.increment();
+            ctr1.increment();
+            check(!TR2.EndTX(), "plain read conflicts with an increment");
+            //and a commutative read conflicts with updates that don't commute
+            TR2.BeginTX();
+            ctr2.readCommutative();
+            ctr2.increment();
+            ctr1.set(10);
+            check(!TR2.EndTX(), "commutative read conflicts with a set");
+            check(ctr2.read()==10, "aborted increment isn't applied");
+            System.out.println("Commutative test successful!");
+        }
+        else if(testnum==TRIMTEST)
+        {
+            //trimming the log after checkpointing one object keeps the state of objects with no checkpoint,
+            //and clients that start after the trim restore both from their checkpoints
+            CorfuLogAddressSpace las = new CorfuLogAddressSpace(crf, masternode);
+            StreamFactory sf = new StreamFactoryImpl(las, new CorfuStreamingSequencer(crf));
+            SimpleRuntime TR1 = new SimpleRuntime(sf);
+            CorfuDBMap<Integer, Integer> cob1 = new CorfuDBMap<Integer, Integer>(TR1, 3301);
+            CorfuDBMap<Integer, Integer> cob2 = new CorfuDBMap<Integer, Integer>(TR1, 3302);
+            for(int i=0;i<10;i++)
+            {
+                cob1.put(i, i);
+                cob2.put(i, 2*i);
+            }
+            cob1.size();
+            TR1.checkpoint(cob1);
+            long head = las.queryhead();
+            sf.newStream(3301).prefixTrim(Long.MAX_VALUE);
+            SimpleRuntime TR2 = new SimpleRuntime(new StreamFactoryImpl(new CorfuLogAddressSpace(crf, masternode), new CorfuStreamingSequencer(crf)));
+            CorfuDBMap<Integer, Integer> cob3 = new CorfuDBMap<Integer, Integer>(TR2, 3302);
+            check(cob3.size()==10 && cob3.get(9)==18, "object without a checkpoint survives the trim");
+            CorfuDBMap<Integer, Integer> cob4 = new CorfuDBMap<Integer, Integer>(TR2, 3301);
+            check(cob4.size()==10 && cob4.get(9)==9, "checkpointed object is restored");
+            //once both are checkpointed, the trim can go past the entries of both
+            cob2.size();
+            TR1.checkpoint(cob2);
+            cob1.put(10, 10);
+            sf.newStream(3302).prefixTrim(Long.MAX_VALUE);
+            check(las.queryhead()>=head, "the log is trimmed");
+            SimpleRuntime TR3 = new SimpleRuntime(new StreamFactoryImpl(new CorfuLogAddressSpace(crf, masternode), new CorfuStreamingSequencer(crf)));
+            CorfuDBMap<Integer, Integer> cob5 = new CorfuDBMap<Integer, Integer>(TR3, 3301);
+            CorfuDBMap<Integer, Integer> cob6 = new CorfuDBMap<Integer, Integer>(TR3, 3302);
+            check(cob5.size()==11 && cob5.get(10)==10, "checkpoint and the suffix after the trim are restored");
+            check(cob6.size()==10 && cob6.get(9)==18, "second checkpoint is restored");
+            System.out.println("Checkpoint trim test successful!");
+        }
+        else if(testnum==SUBSCRIBETEST)
+        {
+            //subscribers get the changes in log order, whether they're replayed from the history or live,
+            //and are cut off at the first position that doesn't fit in the buffer
+            SimpleRuntime TR = new SimpleRuntime(new StreamFactoryImpl(new CorfuLogAddressSpace(crf, masternode), new CorfuStreamingSequencer(crf)));
+            CorfuDBMap<Integer, Integer> cob1 = new CorfuDBMap<Integer, Integer>(TR, 3401);
+            cob1.enableHistory(Long.MAX_VALUE);
+            cob1.put(0, 0);
+            cob1.size();
+            long frompos = cob1.getTimestamp();
+            for(int i=1;i<5;i++)
+                cob1.put(i, i);
+            MapSubscription<Integer, Integer> S1 = cob1.subscribe(frompos, 100);
+            for(int i=5;i<10;i++)
+                cob1.put(i, i);
+            long lastpos = SMREngine.TIMESTAMP_INVALID;
+            boolean ordered = true;
+            for(int i=0;i<10;i++)
+            {
+                MapChange<Integer, Integer> C = S1.next(10000);
+                ordered &= (C!=null && C.getKey()==i && C.getPosition()>lastpos);
+                if(C!=null) lastpos = C.getPosition();
+            }
+            check(ordered, "backlog and live changes are delivered in log order");
+            S1.close();
+            MapSubscription<Integer, Integer> S2 = cob1.subscribe(frompos, 3);
+            check(S2.isCutOff(), "a backlog beyond the buffer cuts the subscription off");
+            for(int i=0;i<3;i++)
+                check(S2.next().getKey()==i, "changes before the cut are delivered");
+            MapSubscription<Integer, Integer> S3 = cob1.subscribe(S2.getResumePosition(), 100);
+            check(S3.next().getKey()==3, "resubscribing resumes at the cut");
+            S3.close();
+            System.out.println("Subscription test successful!");
+        }
+
   //      List<Long> streams = new LinkedList<Long>();
   //      streams.add(new Long(1234)); //hardcoded hack
   //      streams.add(new Long(2345)); //hardcoded hack
@@ -153,6 +324,12 @@ public class CorfuDBTester
 
     }
 
+    static void check(boolean cond, String what)
+    {
+        if(!cond) throw new RuntimeException("check failed: " + what);
+        System.out.println("check passed: " + what);
+    }
+
 
 }
 
@@ -308,14 +485,22 @@ class Pair<X, Y> implements Serializable
         second = s;
     }
 
-    public boolean equals(Pair<X,Y> otherP)
+    @Override
+    public boolean equals(Object o)
     {
-        if(otherP==null) return false;
-        if(((first==null && otherP.first==null) || first.equals(otherP.first)) //first matches up
-                && ((second==null && otherP.second==null) || (second.equals(otherP.second)))) //second matches up
+        if(!(o instanceof Pair)) return false;
+        Pair<?,?> otherP = (Pair<?,?>)o;
+        if(((first==null && otherP.first==null) || (first!=null && first.equals(otherP.first))) //first matches up
+                && ((second==null && otherP.second==null) || (second!=null && second.equals(otherP.second)))) //second matches up
             return true;
         return false;
     }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * (first==null ? 0 : first.hashCode()) + (second==null ? 0 : second.hashCode());
+    }
 }
 
 class BufferStack implements Serializable //todo: custom serialization
@@ -464,8 +649,14 @@ class CorfuDBCounter extends CorfuDBObject
     {
         //System.out.println("dummyupcall");
         System.out.println("CorfuDBCounter received upcall");
-        CounterCommand cc = (CounterCommand)bs;
         lock(true);
+        if(bs instanceof CounterSet)
+        {
+            value = ((CounterSet)bs).value;
+            unlock(true);
+            return;
+        }
+        CounterCommand cc = (CounterCommand)bs;
         if(cc.getCmdType()==CounterCommand.CMD_DEC)
             value--;
         else if(cc.getCmdType()==CounterCommand.CMD_INC)
@@ -478,11 +669,43 @@ class CorfuDBCounter extends CorfuDBObject
         unlock(true);
         System.out.println("Counter value is " + value);
     }
+    public Serializable getState()
+    {
+        lock(false);
+        Integer ret = value;
+        unlock(false);
+        return ret;
+    }
+    public void setState(Object state)
+    {
+        lock(true);
+        value = (Integer)state;
+        unlock(true);
+    }
     public void increment()
     {
         HashSet<Long> H = new HashSet<Long>(); H.add(this.getID());
         TR.update_helper(this, new CounterCommand(CounterCommand.CMD_INC));
     }
+    public void decrement()
+    {
+        TR.update_helper(this, new CounterCommand(CounterCommand.CMD_DEC));
+    }
+    //unlike increments and decrements, this conflicts with every read
+    public void set(int newvalue)
+    {
+        TR.update_helper(this, new CounterSet(newvalue));
+    }
+    //in a transaction, reads the counter without conflicting with concurrent increments and decrements,
+    //which the value may then miss; only a concurrent set aborts the transaction
+    public int readCommutative()
+    {
+        TR.query_helper_commutative(this);
+        lock(false);
+        int ret = value;
+        unlock(false);
+        return ret;
+    }
     public int read()
     {
         TR.query_helper(this);
@@ -498,7 +721,9 @@ class CorfuDBCounter extends CorfuDBObject
 
 }
 
-class CounterCommand implements Serializable
+//increments and decrements commute, so transactions that increment never conflict with each other
+//unless they read the counter with read rather than readCommutative
+class CounterCommand implements CorfuDBObject.CommutativeUpdate
 {
     int cmdtype;
     static final int CMD_DEC = 0;
@@ -513,6 +738,15 @@ class CounterCommand implements Serializable
     }
 };
 
+class CounterSet implements Serializable
+{
+    int value;
+    public CounterSet(int tvalue)
+    {
+        value = tvalue;
+    }
+}
+
 /*class CorfuDBRegister implements CorfuDBObject
 {
 	ByteBuffer converter;
@@ -0,0 +1,427 @@
+/**
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.corfudb.runtime;
+
+import java.util.*;
+
+/**
+ * A map backed by a persistent hash array mapped trie. Updates copy the path from the root to
+ * the changed entry and leave the old trie intact, so snapshot() hands out an immutable copy
+ * of the map in constant time. The map itself is not thread-safe; snapshots can be read by
+ * any number of threads without locking.
+ */
+class HashTrieMap<K,V> extends AbstractMap<K,V>
+{
+    static final int BITS = 5;
+    static final int WIDTH = 1 << BITS;
+
+    TrieNode<K,V> root;
+    int count;
+    boolean readonly;
+
+    public HashTrieMap()
+    {
+        this(null, 0, false);
+    }
+
+    public HashTrieMap(Map<? extends K, ? extends V> map)
+    {
+        this();
+        putAll(map);
+    }
+
+    HashTrieMap(TrieNode<K,V> troot, int tcount, boolean treadonly)
+    {
+        root = troot;
+        count = tcount;
+        readonly = treadonly;
+    }
+
+    /**
+     * Returns an immutable copy of the map. Later updates to this map don't affect the copy.
+     */
+    public HashTrieMap<K,V> snapshot()
+    {
+        if(readonly) return this;
+        return new HashTrieMap<K,V>(root, count, true);
+    }
+
+    static int hash(Object key)
+    {
+        if(key==null) return 0;
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public int size()
+    {
+        return count;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return root!=null && root.find(key, hash(key), 0)!=null;
+    }
+
+    @Override
+    public V get(Object key)
+    {
+        if(root==null) return null;
+        Map.Entry<K,V> e = root.find(key, hash(key), 0);
+        return e==null ? null : e.getValue();
+    }
+
+    @Override
+    public V put(K key, V val)
+    {
+        if(readonly) throw new UnsupportedOperationException("snapshot is read-only");
+        int h = hash(key);
+        Map.Entry<K,V> old = root==null ? null : root.find(key, h, 0);
+        Map.Entry<K,V> e = new SimpleImmutableEntry<K,V>(key, val);
+        if(root==null)
+            root = new BitmapNode<K,V>().put(e, h, 0);
+        else
+            root = root.put(e, h, 0);
+        if(old==null)
+        {
+            count++;
+            return null;
+        }
+        return old.getValue();
+    }
+
+    @Override
+    public V remove(Object key)
+    {
+        if(readonly) throw new UnsupportedOperationException("snapshot is read-only");
+        if(root==null) return null;
+        int h = hash(key);
+        Map.Entry<K,V> old = root.find(key, h, 0);
+        if(old==null) return null;
+        root = root.remove(key, h, 0);
+        count--;
+        return old.getValue();
+    }
+
+    @Override
+    public void clear()
+    {
+        if(readonly) throw new UnsupportedOperationException("snapshot is read-only");
+        root = null;
+        count = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<K,V>> entrySet()
+    {
+        //iterates over the trie as of this call, so the view can't be used to modify the map
+        final TrieNode<K,V> troot = root;
+        final int tcount = count;
+        return new AbstractSet<Map.Entry<K,V>>()
+        {
+            public Iterator<Map.Entry<K,V>> iterator()
+            {
+                return new TrieIterator<K,V>(troot);
+            }
+            public int size()
+            {
+                return tcount;
+            }
+        };
+    }
+}
+
+/**
+ * A node of the trie. Nodes are never modified once they are reachable from a root;
+ * put and remove return new nodes instead.
+ */
+abstract class TrieNode<K,V>
+{
+    abstract Map.Entry<K,V> find(Object key, int hash, int shift);
+
+    abstract TrieNode<K,V> put(Map.Entry<K,V> e, int hash, int shift);
+
+    //returns null if the node becomes empty
+    abstract TrieNode<K,V> remove(Object key, int hash, int shift);
+
+    //returns the only entry of the node if it has no other entries or children, so parents can inline it
+    abstract Map.Entry<K,V> singleEntry();
+
+    //slots are either entries or child nodes
+    abstract Object[] slots();
+
+    static boolean keyEquals(Object a, Object b)
+    {
+        return a==null ? b==null : a.equals(b);
+    }
+
+    static <K,V> TrieNode<K,V> merge(Map.Entry<K,V> e1, int h1, Map.Entry<K,V> e2, int h2, int shift)
+    {
+        if(h1==h2)
+            return new CollisionNode<K,V>(h1, new Object[]{e1, e2});
+        int idx1 = (h1 >>> shift) & (HashTrieMap.WIDTH-1);
+        int idx2 = (h2 >>> shift) & (HashTrieMap.WIDTH-1);
+        if(idx1==idx2)
+            return new BitmapNode<K,V>(1 << idx1, new Object[]{merge(e1, h1, e2, h2, shift + HashTrieMap.BITS)});
+        if(idx1<idx2)
+            return new BitmapNode<K,V>((1 << idx1) | (1 << idx2), new Object[]{e1, e2});
+        return new BitmapNode<K,V>((1 << idx1) | (1 << idx2), new Object[]{e2, e1});
+    }
+}
+
+class BitmapNode<K,V> extends TrieNode<K,V>
+{
+    int bitmap;
+    Object[] array;
+
+    BitmapNode()
+    {
+        this(0, new Object[0]);
+    }
+
+    BitmapNode(int tbitmap, Object[] tarray)
+    {
+        bitmap = tbitmap;
+        array = tarray;
+    }
+
+    Map.Entry<K,V> find(Object key, int hash, int shift)
+    {
+        int bit = 1 << ((hash >>> shift) & (HashTrieMap.WIDTH-1));
+        if((bitmap & bit)==0) return null;
+        Object slot = array[Integer.bitCount(bitmap & (bit-1))];
+        if(slot instanceof TrieNode)
+            return ((TrieNode<K,V>)slot).find(key, hash, shift + HashTrieMap.BITS);
+        Map.Entry<K,V> e = (Map.Entry<K,V>)slot;
+        return keyEquals(key, e.getKey()) ? e : null;
+    }
+
+    TrieNode<K,V> put(Map.Entry<K,V> e, int hash, int shift)
+    {
+        int bit = 1 << ((hash >>> shift) & (HashTrieMap.WIDTH-1));
+        int pos = Integer.bitCount(bitmap & (bit-1));
+        if((bitmap & bit)==0)
+        {
+            Object[] narray = new Object[array.length+1];
+            System.arraycopy(array, 0, narray, 0, pos);
+            narray[pos] = e;
+            System.arraycopy(array, pos, narray, pos+1, array.length-pos);
+            return new BitmapNode<K,V>(bitmap | bit, narray);
+        }
+        Object slot = array[pos];
+        Object nslot;
+        if(slot instanceof TrieNode)
+            nslot = ((TrieNode<K,V>)slot).put(e, hash, shift + HashTrieMap.BITS);
+        else
+        {
+            Map.Entry<K,V> old = (Map.Entry<K,V>)slot;
+            if(keyEquals(e.getKey(), old.getKey()))
+                nslot = e;
+            else
+                nslot = merge(old, HashTrieMap.hash(old.getKey()), e, hash, shift + HashTrieMap.BITS);
+        }
+        Object[] narray = array.clone();
+        narray[pos] = nslot;
+        return new BitmapNode<K,V>(bitmap, narray);
+    }
+
+    TrieNode<K,V> remove(Object key, int hash, int shift)
+    {
+        int bit = 1 << ((hash >>> shift) & (HashTrieMap.WIDTH-1));
+        if((bitmap & bit)==0) return this;
+        int pos = Integer.bitCount(bitmap & (bit-1));
+        Object slot = array[pos];
+        Object nslot;
+        if(slot instanceof TrieNode)
+        {
+            TrieNode<K,V> nchild = ((TrieNode<K,V>)slot).remove(key, hash, shift + HashTrieMap.BITS);
+            if(nchild==slot) return this;
+            nslot = nchild;
+            if(nchild!=null && nchild.singleEntry()!=null)
+                nslot = nchild.singleEntry();
+        }
+        else
+        {
+            if(!keyEquals(key, ((Map.Entry<K,V>)slot).getKey())) return this;
+            nslot = null;
+        }
+        if(nslot!=null)
+        {
+            Object[] narray = array.clone();
+            narray[pos] = nslot;
+            return new BitmapNode<K,V>(bitmap, narray);
+        }
+        if(array.length==1) return null;
+        Object[] narray = new Object[array.length-1];
+        System.arraycopy(array, 0, narray, 0, pos);
+        System.arraycopy(array, pos+1, narray, pos, array.length-pos-1);
+        return new BitmapNode<K,V>(bitmap & ~bit, narray);
+    }
+
+    Map.Entry<K,V> singleEntry()
+    {
+        if(array.length==1 && !(array[0] instanceof TrieNode))
+            return (Map.Entry<K,V>)array[0];
+        return null;
+    }
+
+    Object[] slots()
+    {
+        return array;
+    }
+}
+
+/**
+ * Holds the entries whose keys have the same full hash.
+ */
+class CollisionNode<K,V> extends TrieNode<K,V>
+{
+    int hash;
+    Object[] entries;
+
+    CollisionNode(int thash, Object[] tentries)
+    {
+        hash = thash;
+        entries = tentries;
+    }
+
+    Map.Entry<K,V> find(Object key, int thash, int shift)
+    {
+        if(thash!=hash) return null;
+        for(int i=0;i<entries.length;i++)
+        {
+            Map.Entry<K,V> e = (Map.Entry<K,V>)entries[i];
+            if(keyEquals(key, e.getKey())) return e;
+        }
+        return null;
+    }
+
+    TrieNode<K,V> put(Map.Entry<K,V> e, int thash, int shift)
+    {
+        if(thash!=hash)
+        {
+            //the new key only shares a hash prefix with this node; push the node one level down
+            BitmapNode<K,V> parent = new BitmapNode<K,V>(1 << ((hash >>> shift) & (HashTrieMap.WIDTH-1)), new Object[]{this});
+            return parent.put(e, thash, shift);
+        }
+        for(int i=0;i<entries.length;i++)
+        {
+            if(keyEquals(e.getKey(), ((Map.Entry<K,V>)entries[i]).getKey()))
+            {
+                Object[] nentries = entries.clone();
+                nentries[i] = e;
+                return new CollisionNode<K,V>(hash, nentries);
+            }
+        }
+        Object[] nentries = Arrays.copyOf(entries, entries.length+1);
+        nentries[entries.length] = e;
+        return new CollisionNode<K,V>(hash, nentries);
+    }
+
+    TrieNode<K,V> remove(Object key, int thash, int shift)
+    {
+        if(thash!=hash) return this;
+        for(int i=0;i<entries.length;i++)
+        {
+            if(keyEquals(key, ((Map.Entry<K,V>)entries[i]).getKey()))
+            {
+                if(entries.length==1) return null;
+                Object[] nentries = new Object[entries.length-1];
+                System.arraycopy(entries, 0, nentries, 0, i);
+                System.arraycopy(entries, i+1, nentries, i, entries.length-i-1);
+                return new CollisionNode<K,V>(hash, nentries);
+            }
+        }
+        return this;
+    }
+
+    Map.Entry<K,V> singleEntry()
+    {
+        if(entries.length==1) return (Map.Entry<K,V>)entries[0];
+        return null;
+    }
+
+    Object[] slots()
+    {
+        return entries;
+    }
+}
+
+/**
+ * Depth-first iterator over the entries of a trie.
+ */
+class TrieIterator<K,V> implements Iterator<Map.Entry<K,V>>
+{
+    //slot arrays still being iterated, and the position in each of them
+    ArrayDeque<Object[]> slotstack = new ArrayDeque<Object[]>();
+    ArrayDeque<Integer> posstack = new ArrayDeque<Integer>();
+    Map.Entry<K,V> next;
+
+    TrieIterator(TrieNode<K,V> root)
+    {
+        if(root!=null)
+        {
+            slotstack.push(root.slots());
+            posstack.push(0);
+        }
+        advance();
+    }
+
+    void advance()
+    {
+        next = null;
+        while(!slotstack.isEmpty())
+        {
+            Object[] slots = slotstack.peek();
+            int pos = posstack.pop();
+            if(pos==slots.length)
+            {
+                slotstack.pop();
+                continue;
+            }
+            posstack.push(pos+1);
+            if(slots[pos] instanceof TrieNode)
+            {
+                slotstack.push(((TrieNode<K,V>)slots[pos]).slots());
+                posstack.push(0);
+            }
+            else
+            {
+                next = (Map.Entry<K,V>)slots[pos];
+                return;
+            }
+        }
+    }
+
+    public boolean hasNext()
+    {
+        return next!=null;
+    }
+
+    public Map.Entry<K,V> next()
+    {
+        if(next==null) throw new NoSuchElementException();
+        Map.Entry<K,V> ret = next;
+        advance();
+        return ret;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException("trie iterators are read-only");
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.corfudb.runtime;
+
+/**
+ * A change to a key of a CorfuDBMap, delivered to subscriptions; see CorfuDBMap.subscribe.
+ * The old and new values are null when the key was absent before or after the change.
+ */
+public class MapChange<K,V>
+{
+    K key;
+    V oldval;
+    V newval;
+    long pos = SMREngine.TIMESTAMP_INVALID;
+
+    MapChange(K tkey, V toldval, V tnewval)
+    {
+        key = tkey;
+        oldval = toldval;
+        newval = tnewval;
+    }
+
+    public K getKey()
+    {
+        return key;
+    }
+
+    public V getOldValue()
+    {
+        return oldval;
+    }
+
+    public V getNewValue()
+    {
+        return newval;
+    }
+
+    /**
+     * @return the log position of the update that made the change; an update can change several
+     *         keys, and their changes share its position
+     */
+    public long getPosition()
+    {
+        return pos;
+    }
+}
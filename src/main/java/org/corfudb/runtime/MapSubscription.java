@@ -0,0 +1,134 @@
+/**
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.corfudb.runtime;
+
+import java.util.LinkedList;
+
+/**
+ * A subscription to the changes of a CorfuDBMap, in log order; see CorfuDBMap.subscribe.
+ *
+ * Changes are buffered until the subscriber takes them with next. The buffer is bounded, and
+ * playback never waits for subscribers: if the buffer fills up, the subscription is cut off
+ * at the position of the change that didn't fit. The subscriber takes the changes buffered
+ * before that position, after which next fails, and resubscribes from getResumePosition.
+ * Changes are always delivered for whole positions, so a subscriber that processed all the
+ * changes it took can resume from the position after the last one.
+ */
+public class MapSubscription<K,V>
+{
+    CorfuDBMap<K,V> map;
+    LinkedList<MapChange<K,V>> buffer = new LinkedList<MapChange<K,V>>();
+    int capacity;
+    //changes at earlier positions aren't delivered
+    long frompos;
+    //the position the subscriber has to resume from once it's cut off; TIMESTAMP_INVALID while live
+    long resumepos = SMREngine.TIMESTAMP_INVALID;
+    String cutreason;
+    boolean closed = false;
+
+    MapSubscription(CorfuDBMap<K,V> tmap, long tfrompos, int tcapacity)
+    {
+        map = tmap;
+        frompos = tfrompos;
+        capacity = tcapacity;
+    }
+
+    //called by the apply thread
+    synchronized void deliver(MapChange<K,V> change)
+    {
+        if(closed || resumepos!=SMREngine.TIMESTAMP_INVALID || change.pos<frompos) return;
+        if(buffer.size()>=capacity)
+        {
+            //drop the changes of the same position, so that the subscriber only sees whole positions
+            while(buffer.size()>0 && buffer.getLast().pos==change.pos)
+                buffer.removeLast();
+            cut(change.pos, "subscriber fell behind");
+            return;
+        }
+        buffer.add(change);
+        notifyAll();
+    }
+
+    synchronized void cut(long pos, String reason)
+    {
+        if(resumepos!=SMREngine.TIMESTAMP_INVALID) return;
+        resumepos = pos;
+        cutreason = reason;
+        notifyAll();
+    }
+
+    /**
+     * Returns the next change, waiting for one if there's none buffered.
+     */
+    public MapChange<K,V> next()
+    {
+        return next(-1);
+    }
+
+    /**
+     * Returns the next change, waiting up to the given time for one if there's none buffered.
+     *
+     * @param timeoutmillis how long to wait; a negative value waits for as long as it takes
+     * @return the next change, or null if there was none within the timeout
+     */
+    public synchronized MapChange<K,V> next(long timeoutmillis)
+    {
+        long deadline = System.currentTimeMillis() + timeoutmillis;
+        while(buffer.size()==0)
+        {
+            if(closed) throw new RuntimeException("subscription is closed");
+            if(resumepos!=SMREngine.TIMESTAMP_INVALID)
+                throw new RuntimeException(cutreason + "; resubscribe from position " + resumepos);
+            long waittime = (timeoutmillis<0 ? 0 : deadline - System.currentTimeMillis());
+            if(timeoutmillis>=0 && waittime<=0) return null;
+            try
+            {
+                wait(waittime);
+            }
+            catch(InterruptedException ie)
+            {
+                throw new RuntimeException(ie);
+            }
+        }
+        return buffer.removeFirst();
+    }
+
+    /**
+     * @return whether the subscription was cut off; next fails once the changes before the cut are taken
+     */
+    public synchronized boolean isCutOff()
+    {
+        return resumepos!=SMREngine.TIMESTAMP_INVALID;
+    }
+
+    /**
+     * @return the position to resubscribe from once the subscription is cut off, or -1 if it's live
+     */
+    public synchronized long getResumePosition()
+    {
+        return resumepos;
+    }
+
+    public void close()
+    {
+        map.unsubscribe(this);
+        synchronized(this)
+        {
+            closed = true;
+            buffer.clear();
+            notifyAll();
+        }
+    }
+}
@@ -16,6 +16,14 @@ package org.corfudb.runtime;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -37,8 +45,51 @@ public class SMREngine
     Stream curstream;
 
     static final long TIMESTAMP_INVALID = -1;
-    Lock pendinglock = new ReentrantLock();
-    HashMap<Long, Pair<Serializable, Object>> pendingcommands = new HashMap<Long, Pair<Serializable, Object>>();
+    //commands proposed by this client that playback hasn't applied yet, keyed by their unique ID; they're
+    //dropped once playback passes their position, so proposals whose entry isn't played don't accumulate
+    ConcurrentHashMap<Long, SMRPendingCommand> pendingcommands = new ConcurrentHashMap<Long, SMRPendingCommand>();
+
+    //held by the playback thread while it reads and applies an entry; checkpoints take it
+    //to capture the learner state in between entries
+    Lock playbacklock = new ReentrantLock();
+
+    //proposal batching; a batch is appended once it's batchwindow nanoseconds old or holds
+    //batchbytes bytes of commands. a batchwindow of 0 disables batching. batches are capped at
+    //maxbatchbytes, the commands that fit in one page of the log along with the entry headers
+    long batchwindow = 0;
+    int batchbytes;
+    int maxbatchbytes;
+    Lock batchlock = new ReentrantLock();
+    SMRProposalBatch curbatch;
+
+    //group commit; without a batching window, proposals that arrive while an append is in flight
+    //are packed into the next entry, which is appended as soon as that append completes.
+    //guarded by batchlock
+    boolean groupcommit = false;
+    LinkedList<SMRProposalBatch> groupqueue = new LinkedList<SMRProposalBatch>();
+    boolean appending = false;
+
+    //asynchronous proposals waiting for the appender thread, which packs them into batches in FIFO order
+    LinkedList<SMRAsyncProposal> asyncqueue = new LinkedList<SMRAsyncProposal>();
+    Thread appender;
+
+    //System.nanoTime() at the tail check of the last completed playback round; valid once synced is set
+    volatile long lastsynctime;
+    volatile boolean synced = false;
+    //the tail of the last completed playback round; all entries before it have been applied
+    volatile long synctail = 0;
+
+    //the position playback is at: every entry before it has been applied, and the entry at it, if it
+    //belongs to the stream, is being applied or is the next one to be. it starts at the position playback
+    //starts from. transactions use it to tell which engines have yet to reach an intention
+    volatile long nextpos;
+
+    //the position of the last entry playback applied; guarded by playbacklock
+    long playedpos = TIMESTAMP_INVALID;
+
+    //cleared by shutdown, to stop the playback and appender threads
+    volatile boolean running = true;
+    Thread playbackthread;
 
     public void registerLearner(SMRLearner tlearner)
     {
@@ -46,45 +97,438 @@ public class SMREngine
     }
 
     public SMREngine(Stream sb)
+    {
+        this(sb, 0);
+    }
+
+    /**
+     * @param startpos the position playback of the stream starts from, e.g., that of the checkpoint
+     *                 it was restored from
+     */
+    public SMREngine(Stream sb, long startpos)
     {
         curstream = sb;
+        nextpos = startpos;
+        maxbatchbytes = Math.max(curstream.pageBytes() - SMRProposalBatch.OVERHEAD_BYTES, 1);
+        batchbytes = maxbatchbytes;
 
         queuelock = new ReentrantLock();
         curqueue = new LinkedList<Object>();
 
         //start the playback thread
-        new Thread(new Runnable()
+        playbackthread = new Thread(new Runnable()
         {
             public void run()
             {
-                while(true)
+                while(running)
                 {
                     playback();
                 }
             }
-        }).start();
+        });
+        playbackthread.start();
 
 
     }
 
 
+    /**
+     * Enables batching of proposals. Commands proposed concurrently within the batching window
+     * are packed into a single log entry, up to the given number of bytes, so that they cost one
+     * sequencer token and one write between them. Playback applies them in the order they were
+     * proposed, and each proposer sees the position of the shared entry.
+     *
+     * @param windowmicros how long the first command of a batch waits for others to join; 0 turns batching off
+     * @param maxbytes a batch is appended right away once its commands add up to this many bytes; it's
+     *                 capped at what fits in one page of the log, which 0 stands for. a single command
+     *                 that's larger still gets an entry of its own
+     */
+    public void setBatching(long windowmicros, int maxbytes)
+    {
+        if(maxbytes<0) throw new RuntimeException("negative batch size");
+        batchlock.lock();
+        batchwindow = windowmicros * 1000;
+        batchbytes = (maxbytes==0 ? maxbatchbytes : Math.min(maxbytes, maxbatchbytes));
+        batchlock.unlock();
+    }
+
+    /**
+     * Enables group commit. Unlike batching with a window, a proposal is appended right away
+     * if no other append of this engine is in flight; proposals made while one is are packed
+     * into a single entry (up to the batching size, if set), which is appended once the
+     * in-flight append completes. A batching window, if set, takes precedence.
+     */
+    public void setGroupCommit(boolean tgroupcommit)
+    {
+        batchlock.lock();
+        groupcommit = tgroupcommit;
+        batchlock.unlock();
+    }
+
+    /**
+     * Enables pipelined playback: entries in the next window of log positions are fetched and
+     * deserialized in parallel on the passed in pool, while playback still applies them one at
+     * a time in log order.
+     *
+     * @param window the number of positions to read ahead; 0 disables read-ahead
+     * @param pool the pool that fetches entries; may be shared by several engines
+     */
+    public void setReadAhead(int window, ExecutorService pool)
+    {
+        curstream.setReadAhead(window, pool);
+    }
+
     public long propose(Serializable update, Set<Long> streams, Object precommand)
     {
         SMRCommandWrapper cmd = new SMRCommandWrapper(update, streams);
-        pendinglock.lock();
-        pendingcommands.put(cmd.uniqueid, new Pair(update, precommand));
-        pendinglock.unlock();
-        long pos = curstream.append(cmd, streams);
+        SMRPendingCommand P = new SMRPendingCommand(update, precommand, null);
+        pendingcommands.put(cmd.uniqueid, P);
+        long pos;
+        try
+        {
+            if(batchwindow>0)
+                pos = proposeBatched(cmd);
+            else if(groupcommit)
+                pos = proposeGrouped(cmd);
+            else
+                pos = curstream.append(cmd, streams);
+        }
+        catch(RuntimeException e)
+        {
+            pendingcommands.remove(cmd.uniqueid);
+            throw e;
+        }
+        P.pos = pos;
         if(precommand!=null) //block until precommand is played
             sync(pos);
         return pos;
     }
 
+    /**
+     * Adds the command to the current batch, and returns the position of the log entry the batch is
+     * appended at. The first proposer to join a batch appends it, once the window has passed or
+     * the batch is full.
+     */
+    long proposeBatched(SMRCommandWrapper cmd)
+    {
+        byte[] cmdbytes = BufferStack.serialize(cmd).flatten();
+        batchlock.lock();
+        SMRProposalBatch batch = curbatch;
+        //a command that doesn't fit seals the current batch, which its leader then appends right away
+        SMRProposalBatch overflowed = null;
+        if(batch!=null && !batch.fits(cmdbytes, batchbytes))
+        {
+            overflowed = batch;
+            batch = null;
+        }
+        boolean leader = (batch==null);
+        if(leader)
+        {
+            batch = new SMRProposalBatch(System.nanoTime() + batchwindow);
+            curbatch = batch;
+        }
+        batch.add(cmdbytes, cmd.streams);
+        boolean full = batch.numbytes>=batchbytes;
+        //a full batch can't be joined anymore
+        if(full) curbatch = null;
+        batchlock.unlock();
+        if(overflowed!=null)
+        {
+            synchronized(overflowed)
+            {
+                overflowed.sealed = true;
+                overflowed.notifyAll();
+            }
+        }
+
+        if(leader)
+        {
+            synchronized(batch)
+            {
+                long waittime = batch.deadline - System.nanoTime();
+                while(!full && !batch.sealed && waittime>0)
+                {
+                    try
+                    {
+                        batch.wait(waittime / 1000000, (int)(waittime % 1000000));
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        throw new RuntimeException(ie);
+                    }
+                    waittime = batch.deadline - System.nanoTime();
+                }
+            }
+            batchlock.lock();
+            if(curbatch==batch) curbatch = null;
+            batchlock.unlock();
+            synchronized(batch)
+            {
+                batch.sealed = true;
+            }
+            //no one can join the batch anymore, so its contents are final
+            appendBatch(batch);
+        }
+        else if(full)
+        {
+            //wake up the leader, so it appends the batch right away
+            synchronized(batch)
+            {
+                batch.sealed = true;
+                batch.notifyAll();
+            }
+        }
+        return awaitBatch(batch);
+    }
+
+    /**
+     * Adds the command to the batch at the end of the group commit queue, and returns the position
+     * the batch is appended at. The proposer that starts a batch appends it once it reaches the
+     * head of the queue and the previous append has completed.
+     */
+    long proposeGrouped(SMRCommandWrapper cmd)
+    {
+        byte[] cmdbytes = BufferStack.serialize(cmd).flatten();
+        batchlock.lock();
+        SMRProposalBatch batch = (groupqueue.size()>0 ? groupqueue.getLast() : null);
+        boolean leader = (batch==null || !batch.fits(cmdbytes, batchbytes));
+        if(leader)
+        {
+            batch = new SMRProposalBatch(0);
+            groupqueue.add(batch);
+        }
+        batch.add(cmdbytes, cmd.streams);
+        boolean myturn = (leader && !appending);
+        if(myturn)
+        {
+            //nothing is in flight, so the batch holds just this command
+            appending = true;
+            groupqueue.remove(batch);
+        }
+        batchlock.unlock();
+
+        if(leader)
+        {
+            if(!myturn)
+            {
+                //wait for the previous append to hand over; it takes the batch off the queue first
+                synchronized(batch)
+                {
+                    while(!batch.sealed)
+                    {
+                        try
+                        {
+                            batch.wait();
+                        }
+                        catch (InterruptedException ie)
+                        {
+                            throw new RuntimeException(ie);
+                        }
+                    }
+                }
+            }
+            try
+            {
+                appendBatch(batch);
+            }
+            finally
+            {
+                //hand over to the next batch, if any
+                batchlock.lock();
+                SMRProposalBatch next = (groupqueue.size()>0 ? groupqueue.removeFirst() : null);
+                if(next==null) appending = false;
+                batchlock.unlock();
+                if(next!=null)
+                {
+                    synchronized(next)
+                    {
+                        next.sealed = true;
+                        next.notifyAll();
+                    }
+                }
+            }
+        }
+        return awaitBatch(batch);
+    }
+
+    //appends a batch that can't be joined anymore, and wakes up the proposers waiting for it
+    void appendBatch(SMRProposalBatch batch)
+    {
+        try
+        {
+            long pos = curstream.append(batch, batch.streams);
+            synchronized(batch)
+            {
+                batch.pos = pos;
+                batch.notifyAll();
+            }
+        }
+        catch(RuntimeException e)
+        {
+            synchronized(batch)
+            {
+                batch.error = e;
+                batch.notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    long awaitBatch(SMRProposalBatch batch)
+    {
+        synchronized(batch)
+        {
+            while(batch.pos==TIMESTAMP_INVALID && batch.error==null)
+            {
+                try
+                {
+                    batch.wait();
+                }
+                catch (InterruptedException ie)
+                {
+                    throw new RuntimeException(ie);
+                }
+            }
+            if(batch.error!=null) throw new RuntimeException("batched append failed", batch.error);
+            return batch.pos;
+        }
+    }
+
     public long propose(Serializable update, Set<Long> streams)
     {
         return propose(update, streams, null);
     }
 
+    /**
+     * Proposes a command without waiting for it to be appended. Commands proposed this way are
+     * appended in the order they were proposed, packed into as few log entries as the batch
+     * size allows; they are not ordered with respect to commands passed to propose.
+     *
+     * @param update the command to propose
+     * @param streams the streams the command belongs to
+     * @param applied whether the future completes once the command is applied, rather than appended
+     * @return a future for the log position of the command
+     */
+    public Future<Long> proposeAsync(Serializable update, Set<Long> streams, boolean applied)
+    {
+        SMRAsyncProposal P = new SMRAsyncProposal(new SMRCommandWrapper(update, streams));
+        if(applied)
+            pendingcommands.put(P.cmd.uniqueid, new SMRPendingCommand(null, null, P.future));
+        P.applied = applied;
+        synchronized(asyncqueue)
+        {
+            if(appender==null)
+            {
+                appender = new Thread(new Runnable()
+                {
+                    public void run()
+                    {
+                        while(appendAsync());
+                    }
+                });
+                appender.start();
+            }
+            asyncqueue.add(P);
+            asyncqueue.notifyAll();
+        }
+        return P.future;
+    }
+
+    //runs in the appender thread; appends the asynchronous proposals queued so far as one batch.
+    //returns false once the engine is shut down and the queue is empty
+    boolean appendAsync()
+    {
+        List<SMRAsyncProposal> proposals = new ArrayList<SMRAsyncProposal>();
+        SMRProposalBatch batch = new SMRProposalBatch(0);
+        synchronized(asyncqueue)
+        {
+            while(asyncqueue.size()==0)
+            {
+                if(!running) return false;
+                try
+                {
+                    asyncqueue.wait();
+                }
+                catch (InterruptedException ie)
+                {
+                    throw new RuntimeException(ie);
+                }
+            }
+            //always take at least one proposal, even if it's bigger than the batch size
+            while(asyncqueue.size()>0 && batch.fits(asyncqueue.getFirst().cmdbytes, batchbytes))
+            {
+                SMRAsyncProposal P = asyncqueue.removeFirst();
+                batch.add(P.cmdbytes, P.cmd.streams);
+                proposals.add(P);
+            }
+        }
+        long pos;
+        try
+        {
+            pos = curstream.append(batch, batch.streams);
+        }
+        catch(RuntimeException e)
+        {
+            for(SMRAsyncProposal P : proposals)
+            {
+                if(P.applied)
+                    pendingcommands.remove(P.cmd.uniqueid);
+                P.future.fail(e);
+            }
+            return true;
+        }
+        for(SMRAsyncProposal P : proposals)
+        {
+            if(!P.applied)
+                P.future.complete(pos);
+            else
+            {
+                SMRPendingCommand pending = pendingcommands.get(P.cmd.uniqueid);
+                if(pending!=null) pending.pos = pos;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the engine, once the asynchronous proposals queued so far are appended and the current
+     * playback round is over. Threads waiting in sync are released with the state played back so far,
+     * and futures waiting for updates to be applied fail; the updates are in the log, and whoever plays
+     * the stream next applies them.
+     */
+    public void shutdown()
+    {
+        running = false;
+        Thread tappender;
+        synchronized(asyncqueue)
+        {
+            tappender = appender;
+            asyncqueue.notifyAll();
+        }
+        try
+        {
+            if(tappender!=null) tappender.join();
+            playbackthread.join();
+        }
+        catch(InterruptedException ie)
+        {
+            throw new RuntimeException(ie);
+        }
+        queuelock.lock();
+        List<Object> procqueue = curqueue;
+        curqueue = new LinkedList<Object>();
+        queuelock.unlock();
+        release(procqueue, synctail);
+        Iterator<SMRPendingCommand> it = pendingcommands.values().iterator();
+        while(it.hasNext())
+        {
+            SMRPendingCommand P = it.next();
+            it.remove();
+            if(P.applied!=null)
+                P.applied.fail(new RuntimeException("engine shut down before the update was applied"));
+        }
+    }
+
 
     /** returns once log has been played by playback thread
      * until syncpos.
@@ -96,6 +540,12 @@ public class SMREngine
         synchronized (syncobj)
         {
             queuelock.lock();
+            //once shut down, the engine won't play back any further
+            if(!running)
+            {
+                queuelock.unlock();
+                return;
+            }
             curqueue.add(syncobj);
             queuelock.unlock();
             try
@@ -114,6 +564,113 @@ public class SMREngine
         sync(-1);
     }
 
+    /**
+     * Like sync, but returns right away; the returned future completes with the tail that
+     * playback reached, so that several engines can be synced in parallel.
+     */
+    public Future<Long> syncAsync()
+    {
+        SMRFuture<Long> ret = new SMRFuture<Long>();
+        queuelock.lock();
+        if(running)
+            curqueue.add(ret);
+        else
+            ret.complete(synctail);
+        queuelock.unlock();
+        return ret;
+    }
+
+    /**
+     * Returns right away if playback has caught up with a tail checked at most maxstalenessms
+     * milliseconds ago; otherwise syncs with the current tail. The state seen afterwards reflects
+     * every update that completed before that tail check.
+     */
+    public void sync(long syncpos, long maxstalenessms)
+    {
+        if(synced && System.nanoTime()-lastsynctime <= maxstalenessms*1000000)
+            return;
+        sync(syncpos);
+    }
+
+    /**
+     * Appends a checkpoint of the learner state to the stream. Playback is paused while
+     * the state is captured and written, so the checkpoint reflects exactly the entries
+     * played back so far.
+     *
+     * @param ckstate produces the full learner state
+     * @param ckdelta produces the changes to the learner state since the previous checkpoint,
+     *                or null if a full checkpoint is required; may itself be null
+     * @param done run once the checkpoint is appended, before playback resumes; may be null
+     * @return the position of the checkpoint in the log
+     */
+    public long checkpoint(Callable<Serializable> ckstate, Callable<Serializable> ckdelta, Runnable done)
+    {
+        playbacklock.lock();
+        try
+        {
+            Serializable delta = (ckdelta==null ? null : ckdelta.call());
+            long ret;
+            if(delta!=null)
+                ret = curstream.checkpoint(delta, true);
+            else
+                ret = curstream.checkpoint(ckstate.call(), false);
+            if(done!=null) done.run();
+            return ret;
+        }
+        catch(Exception e)
+        {
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            playbacklock.unlock();
+        }
+    }
+
+    /**
+     * Hands the commands of the entries playback has applied so far to another learner, e.g.,
+     * one that starts sharing the stream late, and then runs join, which hands it the commands
+     * to come. Playback is paused in the meantime, so the learner gets every command once.
+     *
+     * @param S a separate instance of the stream, which the entries are read back from
+     * @param learner the learner to catch up
+     * @param join run once the learner has caught up
+     */
+    public void replay(Stream S, SMRLearner learner, Runnable join)
+    {
+        playbacklock.lock();
+        try
+        {
+            S.checkTail();
+            while(true)
+            {
+                StreamEntry update = S.readNext(playedpos + 1);
+                if(update==null) break;
+                List<SMRCommandWrapper> cmds = new ArrayList<SMRCommandWrapper>();
+                if(update.getPayload() instanceof SMRProposalBatch)
+                {
+                    Iterator<byte[]> it = ((SMRProposalBatch)update.getPayload()).cmds.iterator();
+                    while(it.hasNext())
+                    {
+                        SMRCommandWrapper cmdw = (SMRCommandWrapper)new BufferStack(it.next()).deserialize();
+                        if(isMine(cmdw.streams))
+                            cmds.add(cmdw);
+                    }
+                }
+                else
+                    cmds.add((SMRCommandWrapper)update.getPayload());
+                for(SMRCommandWrapper cmdw : cmds)
+                    learner.apply(cmdw.cmd, cmdw.streams, update.getLogpos());
+                learner.applied(update.getLogpos());
+            }
+            join.run();
+        }
+        finally
+        {
+            playbacklock.unlock();
+        }
+    }
+
     //runs in a single thread
     //todo: currently playback keeps running even if there are no queries; we need to run it on demand
     void playback()
@@ -128,43 +685,149 @@ public class SMREngine
 
 
         //check the current tail of the stream, and then read the stream until that position
+        long checktime = System.nanoTime();
         long curtail = curstream.checkTail();
-        StreamEntry update = curstream.readNext();
-        while(update!=null)
-        {
-            SMRCommandWrapper cmdw = (SMRCommandWrapper)update.getPayload();
-            //if this command was generated by us, swap out the version we read back with the local version
-            //this allows return values to be transmitted via the local command object
-            pendinglock.lock();
-            Pair<Serializable, Object> localcmds = null;
-            if(pendingcommands.containsKey(cmdw.uniqueid))
-                localcmds = pendingcommands.remove(cmdw.uniqueid);
-            pendinglock.unlock();
-            if(smrlearner==null) throw new RuntimeException("smr learner not set!");
-            if(localcmds!=null)
-            {
-                if (localcmds.second != null)
+        while(true)
+        {
+            playbacklock.lock();
+            StreamEntry update = curstream.readNext(curtail);
+            if(update==null)
+            {
+                playbacklock.unlock();
+                break;
+            }
+            nextpos = update.getLogpos();
+            List<SMRFuture<Long>> appliedfutures = new ArrayList<SMRFuture<Long>>();
+            if(update.getPayload() instanceof SMRProposalBatch)
+            {
+                //batched commands are applied in the order they were proposed, all at the position of the batch;
+                //the entry belongs to the streams of all its commands, so skip those of other streams
+                Iterator<byte[]> it = ((SMRProposalBatch)update.getPayload()).cmds.iterator();
+                while(it.hasNext())
                 {
-                    smrlearner.apply(localcmds.second, cmdw.streams, TIMESTAMP_INVALID);
+                    SMRCommandWrapper cmdw = (SMRCommandWrapper)new BufferStack(it.next()).deserialize();
+                    if(isMine(cmdw.streams))
+                        appliedfutures.add(apply(cmdw, update.getLogpos()));
                 }
-                smrlearner.apply(localcmds.first, cmdw.streams, update.getLogpos());
             }
             else
-                smrlearner.apply(cmdw.cmd, cmdw.streams, update.getLogpos());
-            update = curstream.readNext(curtail);
+                appliedfutures.add(apply((SMRCommandWrapper)update.getPayload(), update.getLogpos()));
+            smrlearner.applied(update.getLogpos());
+            for(SMRFuture<Long> F : appliedfutures)
+                if(F!=null) F.complete(update.getLogpos());
+            playedpos = update.getLogpos();
+            playbacklock.unlock();
         }
 
+        if(curtail>nextpos) nextpos = curtail;
+        synctail = curtail;
+        lastsynctime = checktime;
+        synced = true;
+        expire(curtail);
+
         //wake up all waiting query threads; they will now see a state that incorporates all updates
         //that finished before they started
+        release(procqueue, curtail);
+    }
+
+    void release(List<Object> procqueue, long tail)
+    {
         Iterator it = procqueue.iterator();
         while(it.hasNext())
         {
             Object syncobj = it.next();
-            synchronized(syncobj)
+            if(syncobj instanceof SMRFuture)
+                ((SMRFuture<Long>)syncobj).complete(tail);
+            else
+            {
+                synchronized(syncobj)
+                {
+                    syncobj.notifyAll();
+                }
+            }
+        }
+    }
+
+    //drops the pending commands appended before the tail that playback didn't apply; they're in entries
+    //that were lost, or trimmed before they were played
+    void expire(long tail)
+    {
+        Iterator<Map.Entry<Long, SMRPendingCommand>> it = pendingcommands.entrySet().iterator();
+        while(it.hasNext())
+        {
+            Map.Entry<Long, SMRPendingCommand> E = it.next();
+            SMRPendingCommand P = E.getValue();
+            if(P.pos==TIMESTAMP_INVALID || P.pos>=tail) continue;
+            //the remove fails if a concurrent apply got to the command first
+            if(!pendingcommands.remove(E.getKey(), P)) continue;
+            if(P.applied!=null)
+                P.applied.fail(new RuntimeException("update at position " + P.pos + " was not played back"));
+        }
+    }
+
+    /**
+     * Reads back the commands of the entry at the given position that belong to the streams this
+     * engine plays, in the order playback applies them.
+     */
+    List<SMRCommandWrapper> readCommands(long pos)
+    {
+        List<SMRCommandWrapper> ret = new ArrayList<SMRCommandWrapper>();
+        StreamEntry update = curstream.readAt(pos);
+        if(update.getPayload() instanceof SMRProposalBatch)
+        {
+            Iterator<byte[]> it = ((SMRProposalBatch)update.getPayload()).cmds.iterator();
+            while(it.hasNext())
+            {
+                SMRCommandWrapper cmdw = (SMRCommandWrapper)new BufferStack(it.next()).deserialize();
+                if(isMine(cmdw.streams))
+                    ret.add(cmdw);
+            }
+        }
+        else
+            ret.add((SMRCommandWrapper)update.getPayload());
+        return ret;
+    }
+
+    boolean isMine(Set<Long> streams)
+    {
+        Iterator<Long> it = streams.iterator();
+        while(it.hasNext())
+            if(curstream.contains(it.next())) return true;
+        return false;
+    }
+
+    //returns the future of a local proposer waiting for the command to be applied, which the caller completes
+    //once the learner is done with the entry; null if there's none
+    SMRFuture<Long> apply(SMRCommandWrapper cmdw, long pos)
+    {
+        //if this command was generated by us, swap out the version we read back with the local version
+        //this allows return values to be transmitted via the local command object
+        SMRPendingCommand localcmds = null;
+        if(cmdw.clientid.equals(SMRCommandWrapper.CLIENTID))
+            localcmds = pendingcommands.remove(cmdw.uniqueid);
+        if(smrlearner==null) throw new RuntimeException("smr learner not set!");
+        Set<Long> streams = cmdw.streams;
+        if(streams.size()>1)
+        {
+            streams = new HashSet<Long>();
+            Iterator<Long> it = cmdw.streams.iterator();
+            while(it.hasNext())
             {
-                syncobj.notifyAll();
+                Long streamid = it.next();
+                if(curstream.contains(streamid)) streams.add(streamid);
             }
         }
+        if(localcmds!=null && localcmds.cmd!=null)
+        {
+            if (localcmds.precommand != null)
+            {
+                smrlearner.apply(localcmds.precommand, streams, TIMESTAMP_INVALID);
+            }
+            smrlearner.apply(localcmds.cmd, streams, pos);
+        }
+        else
+            smrlearner.apply(cmdw.cmd, streams, pos);
+        return (localcmds==null ? null : localcmds.applied);
     }
 
 }
@@ -175,7 +838,21 @@ public class SMREngine
  */
 interface SMRLearner
 {
+    /**
+     * @param command the command to apply
+     * @param streams the streams of the command that the calling engine plays; commands that belong
+     *                to several streams are applied by the engine of each, once for its part
+     * @param timestamp the log position of the command
+     */
     void apply(Object command, Set<Long> streams, long timestamp);
+
+    /**
+     * Called once all the commands of the log entry at the given position have been applied,
+     * e.g., all those of a batch, so that the learner can publish their effects together.
+     *
+     * @param timestamp the log position of the entry
+     */
+    void applied(long timestamp);
 }
 
 /**
@@ -185,16 +862,159 @@ interface SMRLearner
  */
 class SMRCommandWrapper implements Serializable
 {
-    static long ctr=0;
+    //identifies the commands of this client; unique IDs are only unique within a client
+    static final UUID CLIENTID = UUID.randomUUID();
+    static final AtomicLong ctr = new AtomicLong();
+    UUID clientid;
     long uniqueid;
     Serializable cmd;
     Set<Long> streams;
     public SMRCommandWrapper(Serializable tcmd, Set<Long> tstreams)
     {
         cmd = tcmd;
-        //todo: for now, uniqueid is just a local counter; this won't work with multiple clients!
-        uniqueid = ctr++;
+        clientid = CLIENTID;
+        uniqueid = ctr.getAndIncrement();
         streams = tstreams;
     }
 }
 
+/**
+ * Local state of a command proposed by this client, until playback applies it.
+ */
+class SMRPendingCommand
+{
+    //local versions of the command and its precommand, applied in place of the copies read back from
+    //the log so that return values reach the proposer; null to apply the copies
+    Serializable cmd;
+    Object precommand;
+    //completes once the command is applied; null if nobody waits for that
+    SMRFuture<Long> applied;
+    //the position of the entry holding the command; TIMESTAMP_INVALID while it's being appended
+    volatile long pos = SMREngine.TIMESTAMP_INVALID;
+
+    SMRPendingCommand(Serializable tcmd, Object tprecommand, SMRFuture<Long> tapplied)
+    {
+        cmd = tcmd;
+        precommand = tprecommand;
+        applied = tapplied;
+    }
+}
+
+/**
+ * A batch of proposals that SMREngine appends as a single log entry. Commands are kept
+ * serialized, so the batch knows its size while it fills up.
+ */
+class SMRProposalBatch implements Serializable
+{
+    List<byte[]> cmds = new ArrayList<byte[]>();
+    Set<Long> streams = new HashSet<Long>();
+    //serialized size of the commands, plus an estimate of what each adds to the entry besides its bytes
+    transient int numbytes;
+
+    //estimates of the serialization overhead of the entry that holds the batch, and of each command in it
+    static final int OVERHEAD_BYTES = 512;
+    static final int CMD_OVERHEAD_BYTES = 32;
+
+    //local bookkeeping for the proposing threads
+    transient long deadline;
+    transient boolean sealed;
+    transient long pos = SMREngine.TIMESTAMP_INVALID;
+    transient RuntimeException error;
+
+    public SMRProposalBatch(long tdeadline)
+    {
+        deadline = tdeadline;
+    }
+
+    //whether the command can join the batch without taking it past maxbytes; an empty batch takes
+    //any command, so only a batch of one command is ever bigger. a maxbytes of 0 means no cap
+    boolean fits(byte[] cmd, int maxbytes)
+    {
+        return cmds.size()==0 || maxbytes==0 || numbytes + cmd.length + CMD_OVERHEAD_BYTES<=maxbytes;
+    }
+
+    void add(byte[] cmd, Set<Long> tstreams)
+    {
+        cmds.add(cmd);
+        streams.addAll(tstreams);
+        numbytes += cmd.length + CMD_OVERHEAD_BYTES;
+    }
+}
+
+/**
+ * A command proposed through SMREngine.proposeAsync, along with the future handed back to the proposer.
+ */
+class SMRAsyncProposal
+{
+    SMRCommandWrapper cmd;
+    //the serialized command, which the proposer produces before queueing it
+    byte[] cmdbytes;
+    boolean applied;
+    SMRFuture<Long> future = new SMRFuture<Long>();
+
+    public SMRAsyncProposal(SMRCommandWrapper tcmd)
+    {
+        cmd = tcmd;
+        cmdbytes = BufferStack.serialize(tcmd).flatten();
+    }
+}
+
+/**
+ * A future that is completed explicitly by the SMREngine. Cancellation is not supported.
+ */
+class SMRFuture<T> implements Future<T>
+{
+    T value;
+    Throwable error;
+    boolean done;
+
+    synchronized void complete(T tvalue)
+    {
+        value = tvalue;
+        done = true;
+        notifyAll();
+    }
+
+    synchronized void fail(Throwable terror)
+    {
+        error = terror;
+        done = true;
+        notifyAll();
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        return false;
+    }
+
+    public boolean isCancelled()
+    {
+        return false;
+    }
+
+    public synchronized boolean isDone()
+    {
+        return done;
+    }
+
+    public synchronized T get() throws InterruptedException, ExecutionException
+    {
+        while(!done)
+            wait();
+        if(error!=null) throw new ExecutionException(error);
+        return value;
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(!done)
+        {
+            long waittime = deadline - System.nanoTime();
+            if(waittime<=0) throw new TimeoutException();
+            wait(waittime / 1000000, (int)(waittime % 1000000));
+        }
+        if(error!=null) throw new ExecutionException(error);
+        return value;
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.corfudb.runtime;
+
+import java.util.*;
+
+/**
+ * A map partitioned across several CorfuDBMaps by the hash of the key. Each shard is an object
+ * of its own, with its own stream and SMREngine, so the shards are played back (and replayed
+ * after a restart) in parallel. Operations on a key go to its shard only.
+ *
+ * The shards use object IDs baseoid to baseoid+numshards-1. Outside a transaction, operations
+ * that span shards (size, clear, putAll, the collection views) aren't atomic across them; within
+ * a TXRuntime transaction they are.
+ */
+public class ShardedCorfuDBMap<K,V> implements Map<K,V>
+{
+    List<CorfuDBMap<K,V>> shards;
+
+    public ShardedCorfuDBMap(AbstractRuntime TR, long baseoid, int numshards)
+    {
+        this(TR, baseoid, numshards, false);
+    }
+
+    /**
+     * @param lockfree whether the shards are lock-free CorfuDBMaps
+     */
+    public ShardedCorfuDBMap(AbstractRuntime TR, long baseoid, int numshards, boolean lockfree)
+    {
+        if(numshards<1) throw new RuntimeException("a sharded map needs at least one shard");
+        shards = new ArrayList<CorfuDBMap<K,V>>(numshards);
+        for(int i=0;i<numshards;i++)
+            shards.add(new CorfuDBMap<K,V>(TR, baseoid + i, lockfree));
+    }
+
+    public int getNumShards()
+    {
+        return shards.size();
+    }
+
+    public CorfuDBMap<K,V> getShard(int i)
+    {
+        return shards.get(i);
+    }
+
+    CorfuDBMap<K,V> shardOf(Object key)
+    {
+        int h = (key==null ? 0 : key.hashCode());
+        h ^= (h >>> 16);
+        return shards.get((h & 0x7fffffff) % shards.size());
+    }
+
+    @Override
+    public int size()
+    {
+        int x = 0;
+        for(CorfuDBMap<K,V> shard : shards)
+            x += shard.size();
+        return x;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        for(CorfuDBMap<K,V> shard : shards)
+            if(!shard.isEmpty()) return false;
+        return true;
+    }
+
+    @Override
+    public boolean containsKey(Object o)
+    {
+        return shardOf(o).containsKey(o);
+    }
+
+    @Override
+    public boolean containsValue(Object o)
+    {
+        for(CorfuDBMap<K,V> shard : shards)
+            if(shard.containsValue(o)) return true;
+        return false;
+    }
+
+    @Override
+    public V get(Object o)
+    {
+        return shardOf(o).get(o);
+    }
+
+    @Override
+    public V put(K key, V val)
+    {
+        return shardOf(key).put(key, val);
+    }
+
+    @Override
+    public V remove(Object o)
+    {
+        return shardOf(o).remove(o);
+    }
+
+    /**
+     * Puts the entries with one update per shard they fall into.
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> map)
+    {
+        Map<CorfuDBMap<K,V>, Map<K,V>> pershard = new HashMap<CorfuDBMap<K,V>, Map<K,V>>();
+        Iterator<? extends Entry<? extends K, ? extends V>> it = map.entrySet().iterator();
+        while(it.hasNext())
+        {
+            Entry<? extends K, ? extends V> e = it.next();
+            CorfuDBMap<K,V> shard = shardOf(e.getKey());
+            Map<K,V> entries = pershard.get(shard);
+            if(entries==null)
+            {
+                entries = new HashMap<K,V>();
+                pershard.put(shard, entries);
+            }
+            entries.put(e.getKey(), e.getValue());
+        }
+        Iterator<Entry<CorfuDBMap<K,V>, Map<K,V>>> it2 = pershard.entrySet().iterator();
+        while(it2.hasNext())
+        {
+            Entry<CorfuDBMap<K,V>, Map<K,V>> e = it2.next();
+            e.getKey().putAll(e.getValue());
+        }
+    }
+
+    @Override
+    public void clear()
+    {
+        for(CorfuDBMap<K,V> shard : shards)
+            shard.clear();
+    }
+
+    //merges the snapshots of the shards
+    Map<K,V> getSnapshot()
+    {
+        HashMap<K,V> x = new HashMap<K,V>();
+        for(CorfuDBMap<K,V> shard : shards)
+            x.putAll(shard.getSnapshot());
+        return Collections.unmodifiableMap(x);
+    }
+
+    /**
+     * Returns a read-only snapshot of the keys of all shards; see CorfuDBMap.keySet.
+     */
+    @Override
+    public Set<K> keySet()
+    {
+        return getSnapshot().keySet();
+    }
+
+    @Override
+    public Collection<V> values()
+    {
+        return getSnapshot().values();
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet()
+    {
+        return getSnapshot().entrySet();
+    }
+}
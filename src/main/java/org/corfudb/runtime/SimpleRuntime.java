@@ -15,10 +15,18 @@
 package org.corfudb.runtime;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This runtime implementation provides linearizable semantics for CorfuDB objects. It's unaware of transactions.
@@ -36,6 +44,105 @@ public class SimpleRuntime implements AbstractRuntime, SMRLearner
     //map from object IDs to object instances; used for multiplexing
     Map<Long, CorfuDBObject> objectmap;
 
+    //proposal batching settings passed on to the SMREngines; see SMREngine.setBatching
+    long batchwindow = 0;
+    int batchbytes = 0;
+    boolean groupcommit = false;
+
+    //read-ahead settings passed on to the SMREngines; see SMREngine.setReadAhead
+    int readahead = 0;
+    ExecutorService readaheadpool;
+
+    //bound on the number of objects with a running engine; 0 means no bound. the engines are kept
+    //in access order, so the least recently used one is evicted first
+    int maxresident = 0;
+    //engines being evicted or started, keyed by stream ID; accesses to them wait on the future, which
+    //completes once the engine is gone or running. guarded by enginemap
+    Map<Long, SMRFuture<SMREngine>> evicting = new HashMap<Long, SMRFuture<SMREngine>>();
+    Map<Long, SMRFuture<SMREngine>> starting = new HashMap<Long, SMRFuture<SMREngine>>();
+    //number of accesses using each engine, keyed by stream ID; engines in use aren't evicted. guarded by enginemap
+    Map<Long, Integer> inuse = new HashMap<Long, Integer>();
+    //objects just read, keyed by stream ID, with the time (System.nanoTime) until which they aren't evicted,
+    //so that the reader has time to read their local state once the runtime returns. guarded by enginemap
+    Map<Long, Long> readholds = new HashMap<Long, Long>();
+    static final long READ_HOLD_MS = 1000;
+    //the positions that evicted objects are played back from once they're rehydrated, or earlier ones,
+    //keyed by stream ID. guarded by enginemap
+    Map<Long, Long> evictedat = new HashMap<Long, Long>();
+
+    //the objects updated by the log entry each playback thread is applying; they're stamped with its
+    //position once the whole entry is applied, so that they publish the effects of the entry together.
+    //maps each to whether any of the updates isn't commutative, in which case its exclusive timestamp
+    //is stamped too
+    ThreadLocal<Map<Long, Boolean>> tostamp = new ThreadLocal<Map<Long, Boolean>>()
+    {
+        protected Map<Long, Boolean> initialValue()
+        {
+            return new HashMap<Long, Boolean>();
+        }
+    };
+
+    //map from the IDs of objects that share a stream to the ID of the stream; see setStreamGroup
+    Map<Long, Long> groupmap = new HashMap<Long, Long>();
+
+    /**
+     * Places an object in a stream group: the objects of a group share one stream and one
+     * SMREngine, which dispatches each entry to its object by the object ID in the entry header.
+     * This saves a stream and a playback thread per object, for applications with many small
+     * objects, and objects that are read together are played back together.
+     *
+     * Has to be called before the object is registered. An object that registers once its group
+     * is being played back is caught up by reading back the group stream. Objects in a group can't
+     * be checkpointed or evicted.
+     *
+     * @param oid the ID of the object
+     * @param groupid the ID of the stream the group shares; it can't be the ID of another object
+     */
+    public void setStreamGroup(long oid, long groupid)
+    {
+        synchronized(objectmap)
+        {
+            if(objectmap.containsKey(oid)) throw new RuntimeException("object is already registered");
+            if(oid!=groupid && objectmap.containsKey(groupid)) throw new RuntimeException("stream group ID is taken by an object");
+            synchronized(groupmap)
+            {
+                groupmap.put(oid, groupid);
+            }
+        }
+    }
+
+    //returns the ID of the stream the object is played from
+    long streamOf(long oid)
+    {
+        synchronized(groupmap)
+        {
+            Long groupid = groupmap.get(oid);
+            return (groupid==null ? oid : groupid);
+        }
+    }
+
+    boolean isGrouped(long oid)
+    {
+        synchronized(groupmap)
+        {
+            return groupmap.containsKey(oid);
+        }
+    }
+
+    //tags commands of grouped objects with the ID of their object, which the stream ID no longer identifies
+    Object toStreamCommand(CorfuDBObject cob, Object cmd)
+    {
+        if(cmd==null || !isGrouped(cob.getID())) return cmd;
+        return new GroupedCommand(cob.getID(), cmd);
+    }
+
+    Set<Long> streamsOf(CorfuDBObject cob)
+    {
+        Set<Long> streams = new HashSet<Long>();
+        streams.add(streamOf(cob.getID()));
+        return streams;
+    }
+
     /**
      * Registers an object with the runtime
      *
@@ -43,24 +150,105 @@ public class SimpleRuntime implements AbstractRuntime, SMRLearner
      */
     public void registerObject(CorfuDBObject obj)
     {
+        checkNotRegistered(obj);
+        System.out.println("registering object ID " + obj.getID());
+        if(isGrouped(obj.getID()))
+        {
+            registerGrouped(obj);
+            return;
+        }
         synchronized(objectmap)
         {
-            synchronized(enginemap)
+            checkNotRegistered(obj);
+            objectmap.put(obj.getID(), obj);
+        }
+        //an access racing with the registration may have started the engine already
+        acquireEngine(obj.getID());
+        releaseEngine(obj.getID());
+    }
+
+    void checkNotRegistered(CorfuDBObject obj)
+    {
+        synchronized(objectmap)
+        {
+            if (objectmap.containsKey(obj.getID()))
+            {
+                System.out.println("object ID already registered!");
+                throw new RuntimeException();
+            }
+        }
+    }
+
+    //the group stream may have been played back already, for the other objects of the group; the entries
+    //played so far are read back from the log and applied to the object, before it starts getting new ones
+    void registerGrouped(final CorfuDBObject obj)
+    {
+        SMREngine smre = acquireEngine(obj.getID());
+        try
+        {
+            smre.replay(streamfactory.newStream(streamOf(obj.getID())), new SMRLearner()
             {
-                if (objectmap.containsKey(obj.getID()))
+                public void apply(Object command, Set<Long> streams, long timestamp)
                 {
-                    System.out.println("object ID already registered!");
-                    throw new RuntimeException();
+                    if(!(command instanceof GroupedCommand) || ((GroupedCommand)command).oid!=obj.getID()) return;
+                    obj.apply(((GroupedCommand)command).cmd);
+                    updated = true;
                 }
-                System.out.println("registering object ID " + obj.getID());
-                objectmap.put(obj.getID(), obj);
-                SMREngine smre = new SMREngine(streamfactory.newStream(obj.getID()));
-                smre.registerLearner(this);
-                enginemap.put(obj.getID(), smre);
-            }
+
+                public void applied(long timestamp)
+                {
+                    if(updated) obj.setTimestamp(timestamp);
+                    updated = false;
+                }
+
+                boolean updated = false;
+            }, new Runnable()
+            {
+                public void run()
+                {
+                    synchronized(objectmap)
+                    {
+                        checkNotRegistered(obj);
+                        objectmap.put(obj.getID(), obj);
+                    }
+                }
+            });
+        }
+        finally
+        {
+            releaseEngine(obj.getID());
         }
     }
 
+    //restores the object from its latest checkpoint, if there is one, and starts the engine that plays
+    //back the rest of the stream; called without any locks held, since it reads the log. the object is
+    //null for stream groups, which aren't checkpointed
+    SMREngine startEngine(long streamid, CorfuDBObject obj)
+    {
+        Stream S = streamfactory.newStream(streamid);
+        Iterator<CheckpointEntry> it = S.restore().iterator();
+        long startpos = 0;
+        while(obj!=null && it.hasNext())
+        {
+            CheckpointEntry ck = it.next();
+            startpos = ck.getPosition();
+            Pair<Serializable, Pair<Long, Long>> ckstate = (Pair<Serializable, Pair<Long, Long>>)ck.getState();
+            if(ck.isDelta())
+                obj.mergeDelta(ckstate.first);
+            else
+                obj.setState(ckstate.first);
+            obj.setExclusiveTimestamp(ckstate.second.second);
+            obj.setTimestamp(ckstate.second.first);
+        }
+        SMREngine smre = new SMREngine(S, startpos);
+        smre.setBatching(batchwindow, batchbytes);
+        smre.setGroupCommit(groupcommit);
+        if(readahead>0)
+            smre.setReadAhead(readahead, readaheadpool);
+        smre.registerLearner(this);
+        return smre;
+    }
+
     CorfuDBObject getObject(long objectid)
     {
         synchronized(objectmap)
@@ -70,15 +258,185 @@ public class SimpleRuntime implements AbstractRuntime, SMRLearner
         }
     }
 
-    SMREngine getEngine(long objectid)
+    //returns the engine of the object, marked in use so that it isn't evicted until releaseEngine.
+    //if the object was evicted, it's rehydrated from its checkpoint and the rest of its stream
+    SMREngine acquireEngine(long objectid)
+    {
+        long streamid = streamOf(objectid);
+        SMRFuture<SMREngine> pending;
+        while(true)
+        {
+            synchronized(enginemap)
+            {
+                SMREngine ret = enginemap.get(streamid);
+                pending = evicting.get(streamid);
+                if(pending==null) pending = starting.get(streamid);
+                if(ret!=null && pending==null)
+                {
+                    Integer n = inuse.get(streamid);
+                    inuse.put(streamid, (n==null ? 1 : n+1));
+                    return ret;
+                }
+                if(pending==null)
+                {
+                    //we start it; accesses racing with us wait for the placeholder
+                    pending = new SMRFuture<SMREngine>();
+                    starting.put(streamid, pending);
+                    break;
+                }
+            }
+            //evicted or started by another thread; check again once it's done
+            try
+            {
+                pending.get();
+            }
+            catch(Exception e)
+            {
+                //a failed start is retried by the next access
+            }
+        }
+        SMREngine ret;
+        try
+        {
+            ret = startEngine(streamid, (isGrouped(objectid) ? null : getObject(objectid)));
+        }
+        catch(RuntimeException e)
+        {
+            synchronized(enginemap)
+            {
+                starting.remove(streamid);
+            }
+            pending.fail(e);
+            throw e;
+        }
+        synchronized(enginemap)
+        {
+            enginemap.put(streamid, ret);
+            starting.remove(streamid);
+            evictedat.remove(streamid);
+            Integer n = inuse.get(streamid);
+            inuse.put(streamid, (n==null ? 1 : n+1));
+        }
+        pending.complete(ret);
+        evict();
+        return ret;
+    }
+
+    void releaseEngine(long objectid)
+    {
+        long streamid = streamOf(objectid);
+        synchronized(enginemap)
+        {
+            int n = inuse.get(streamid);
+            if(n==1)
+                inuse.remove(streamid);
+            else
+                inuse.put(streamid, n-1);
+        }
+    }
+
+    //releases the engine acquired for a read; the object isn't evicted for another READ_HOLD_MS, while the
+    //caller reads its local state
+    void holdEngine(long objectid)
+    {
+        long streamid = streamOf(objectid);
+        synchronized(enginemap)
+        {
+            readholds.put(streamid, System.nanoTime() + READ_HOLD_MS * 1000000);
+        }
+        releaseEngine(objectid);
+    }
+
+    //called with enginemap locked
+    boolean isHeld(long streamid)
+    {
+        Long deadline = readholds.get(streamid);
+        if(deadline==null) return false;
+        if(deadline - System.nanoTime() > 0) return true;
+        readholds.remove(streamid);
+        return false;
+    }
+
+    /**
+     * Bounds the number of objects kept in memory with a running engine. Beyond it, the least
+     * recently used objects that support eviction (see CorfuDBObject.isEvictable) are checkpointed,
+     * their engine is stopped and their state dropped. When accessed again, they're restored
+     * from the checkpoint and the part of their stream that follows it.
+     *
+     * @param maxobjects the number of objects to keep in memory; 0 for no bound
+     */
+    public void setCacheSize(int maxobjects)
     {
         synchronized(enginemap)
         {
-            if(!enginemap.containsKey(objectid)) throw new RuntimeException("engine doesnt exist");
-            return enginemap.get(objectid);
+            maxresident = maxobjects;
         }
+        evict();
     }
 
+    //evicts the least recently used objects until the cache is within its bound; called without any locks
+    //held, since checkpointing waits for playback, which takes the objectmap lock
+    void evict()
+    {
+        while(true)
+        {
+            long victim = -1;
+            SMRFuture<SMREngine> pending;
+            SMREngine smre = null;
+            CorfuDBObject cob = null;
+            synchronized(enginemap)
+            {
+                if(maxresident<=0 || enginemap.size()-evicting.size()<=maxresident) return;
+                Iterator<Map.Entry<Long, SMREngine>> it = enginemap.entrySet().iterator();
+                while(it.hasNext())
+                {
+                    Map.Entry<Long, SMREngine> E = it.next();
+                    //engines in use are skipped rather than waited for, as the evicting thread may be using one
+                    if(evicting.containsKey(E.getKey()) || inuse.containsKey(E.getKey()) || isHeld(E.getKey())) continue;
+                    //the engines of stream groups aren't keyed by an object
+                    if(isGrouped(E.getKey()) || !objectmap.containsKey(E.getKey())) continue;
+                    CorfuDBObject tcob = getObject(E.getKey());
+                    if(!tcob.isEvictable()) continue;
+                    victim = E.getKey();
+                    smre = E.getValue();
+                    cob = tcob;
+                    break;
+                }
+                if(cob==null) return;
+                //from here on, accesses wait for the eviction to finish and rehydrate the object, so nothing
+                //uses the engine or the state once they're released below
+                pending = new SMRFuture<SMREngine>();
+                evicting.put(victim, pending);
+                //the checkpoint covers every entry before the position playback is at now
+                evictedat.put(victim, smre.nextpos);
+            }
+            System.out.println("evicting object ID " + victim);
+            try
+            {
+                checkpoint(cob, smre);
+            }
+            catch(RuntimeException e)
+            {
+                //the object stays resident
+                synchronized(enginemap)
+                {
+                    evicting.remove(victim);
+                    evictedat.remove(victim);
+                }
+                pending.complete(null);
+                throw e;
+            }
+            smre.shutdown();
+            synchronized(enginemap)
+            {
+                cob.releaseState();
+                enginemap.remove(victim);
+                evicting.remove(victim);
+                readholds.remove(victim);
+            }
+            pending.complete(null);
+        }
+    }
 
     /**
      * Creates a SimpleRuntime with an underlying SMR engine. Registers itself
@@ -90,25 +448,109 @@ public class SimpleRuntime implements AbstractRuntime, SMRLearner
     {
         streamfactory = fact;
         objectmap = new HashMap();
-        enginemap = new HashMap();
+        //in access order, for the object cache
+        enginemap = new LinkedHashMap<Long, SMREngine>(16, 0.75f, true);
 
     }
 
+    /**
+     * Enables batching of concurrent updates into shared log entries, for all objects
+     * registered with the runtime.
+     *
+     * @param windowmicros how long an update waits for others to join its batch; 0 turns batching off
+     * @param maxbytes the size at which a batch is appended without waiting any longer; 0 for as
+     *                 many commands as fit in one page of the log, which also caps larger sizes
+     */
+    public void setBatching(long windowmicros, int maxbytes)
+    {
+        synchronized(enginemap)
+        {
+            batchwindow = windowmicros;
+            batchbytes = maxbytes;
+            Iterator<SMREngine> it = enginemap.values().iterator();
+            while(it.hasNext())
+                it.next().setBatching(windowmicros, maxbytes);
+        }
+    }
+
+    /**
+     * Enables group commit of concurrent updates, for all objects registered with the runtime;
+     * see SMREngine.setGroupCommit.
+     */
+    public void setGroupCommit(boolean tgroupcommit)
+    {
+        synchronized(enginemap)
+        {
+            groupcommit = tgroupcommit;
+            Iterator<SMREngine> it = enginemap.values().iterator();
+            while(it.hasNext())
+                it.next().setGroupCommit(tgroupcommit);
+        }
+    }
+
+    /**
+     * Enables pipelined playback for all objects registered with the runtime. The engines share
+     * one pool of reader threads.
+     *
+     * @param window the number of log positions each engine reads ahead; 0 disables read-ahead
+     * @param threads the number of reader threads
+     */
+    public void setReadAhead(int window, int threads)
+    {
+        synchronized(enginemap)
+        {
+            ExecutorService oldpool = readaheadpool;
+            readahead = window;
+            readaheadpool = (window>0 ? Executors.newFixedThreadPool(threads) : null);
+            Iterator<SMREngine> it = enginemap.values().iterator();
+            while(it.hasNext())
+                it.next().setReadAhead(window, readaheadpool);
+            //reads already handed to the old pool still complete
+            if(oldpool!=null) oldpool.shutdown();
+        }
+    }
+
     public void BeginTX()
     {
         throw new RuntimeException("SimpleRuntime does not support transactions.");
     }
 
+    public void BeginTX(boolean readonly)
+    {
+        throw new RuntimeException("SimpleRuntime does not support transactions.");
+    }
+
     public boolean EndTX()
     {
         throw new RuntimeException("SimpleRuntime does not support transactions.");
     }
 
+    public long getSnapshotPosition()
+    {
+        return SMREngine.TIMESTAMP_INVALID;
+    }
+
+    public long getOldestSnapshotPosition()
+    {
+        return SMREngine.TIMESTAMP_INVALID;
+    }
+
     public void query_then_update_helper(CorfuDBObject cob, Object query, Serializable update)
     {
-        Set<Long> streams = new HashSet<Long>();
-        streams.add(cob.getID());
-        getEngine(cob.getID()).propose(update, streams, query);
+        SMREngine smre = acquireEngine(cob.getID());
+        try
+        {
+            smre.propose((Serializable)toStreamCommand(cob, update), streamsOf(cob), toStreamCommand(cob, query));
+        }
+        finally
+        {
+            releaseEngine(cob.getID());
+        }
+    }
+
+    public void query_then_update_helper(CorfuDBObject cob, Object query, Serializable update, Serializable key)
+    {
+        query_then_update_helper(cob, query, update);
     }
 
     public void update_helper(CorfuDBObject cob, Serializable update)
@@ -116,16 +558,182 @@ public class SimpleRuntime implements AbstractRuntime, SMRLearner
         query_then_update_helper(cob, null, update);
     }
 
+    public Future<Long> update_helper_async(CorfuDBObject cob, Serializable update, boolean applied)
+    {
+        SMREngine smre = acquireEngine(cob.getID());
+        try
+        {
+            return smre.proposeAsync((Serializable)toStreamCommand(cob, update), streamsOf(cob), applied);
+        }
+        finally
+        {
+            releaseEngine(cob.getID());
+        }
+    }
+
+
+    public List<Object> readUpdates(CorfuDBObject cob, long pos)
+    {
+        List<Object> ret = new ArrayList<Object>();
+        List<SMRCommandWrapper> cmds;
+        SMREngine smre = acquireEngine(cob.getID());
+        try
+        {
+            cmds = smre.readCommands(pos);
+        }
+        finally
+        {
+            releaseEngine(cob.getID());
+        }
+        Iterator<SMRCommandWrapper> it = cmds.iterator();
+        while(it.hasNext())
+        {
+            SMRCommandWrapper cmdw = it.next();
+            collectUpdates(cob, cmdw.cmd, cmdw.streams, ret);
+        }
+        return ret;
+    }
+
+    //adds the updates to the object within the command to the list, dispatching them the way apply does
+    void collectUpdates(CorfuDBObject cob, Object command, Set<Long> streams, List<Object> ret)
+    {
+        if(command instanceof GroupedCommand)
+        {
+            if(((GroupedCommand)command).oid==cob.getID())
+                ret.add(((GroupedCommand)command).cmd);
+        }
+        else if(streams.contains(cob.getID()))
+            ret.add(command);
+    }
 
     public void query_helper(CorfuDBObject cob)
     {
-        getEngine(cob.getID()).sync();
+        int readmode = cob.getReadMode();
+        //even local reads need the object resident; if it was evicted, it's rehydrated first
+        SMREngine smre = acquireEngine(cob.getID());
+        if(readmode==CorfuDBObject.READ_LOCAL)
+        {
+            holdEngine(cob.getID());
+            return;
+        }
+        try
+        {
+            if(readmode==CorfuDBObject.READ_BOUNDED)
+                smre.sync(-1, cob.getMaxStaleness());
+            else
+                smre.sync();
+        }
+        catch(RuntimeException e)
+        {
+            releaseEngine(cob.getID());
+            throw e;
+        }
+        //the caller reads the local state next
+        holdEngine(cob.getID());
+    }
+
+    public void query_helper(CorfuDBObject cob, Serializable key)
+    {
+        query_helper(cob);
+    }
+
+    public void query_helper_commutative(CorfuDBObject cob)
+    {
+        query_helper(cob);
+    }
+
+    public long checkpoint(CorfuDBObject cob)
+    {
+        //todo: checkpoint the objects of a stream group together
+        if(isGrouped(cob.getID())) throw new RuntimeException("objects in stream groups can't be checkpointed");
+        SMREngine smre = acquireEngine(cob.getID());
+        try
+        {
+            return checkpoint(cob, smre);
+        }
+        finally
+        {
+            releaseEngine(cob.getID());
+        }
+    }
+
+    long checkpoint(CorfuDBObject cob, SMREngine smre)
+    {
+        final CorfuDBObject fcob = cob;
+        //which of the two the engine took; the delta is asked for first
+        final boolean[] isdelta = new boolean[1];
+        //the object timestamps are checkpointed along with the state, so that
+        //transactions validate against the same versions after a restore
+        return smre.checkpoint(new Callable<Serializable>()
+        {
+            public Serializable call()
+            {
+                synchronized(objectmap)
+                {
+                    return new Pair<Serializable, Pair<Long, Long>>(fcob.getState(), timestamps(fcob));
+                }
+            }
+        }, new Callable<Serializable>()
+        {
+            public Serializable call()
+            {
+                synchronized(objectmap)
+                {
+                    Serializable delta = fcob.getDelta();
+                    if(delta==null) return null;
+                    isdelta[0] = true;
+                    return new Pair<Serializable, Pair<Long, Long>>(delta, timestamps(fcob));
+                }
+            }
+        }, new Runnable()
+        {
+            public void run()
+            {
+                synchronized(objectmap)
+                {
+                    fcob.checkpointed(isdelta[0]);
+                }
+            }
+        });
+    }
+
+    static Pair<Long, Long> timestamps(CorfuDBObject cob)
+    {
+        return new Pair<Long, Long>(cob.getTimestamp(), cob.getExclusiveTimestamp());
+    }
+
+    public void applied(long timestamp)
+    {
+        Map<Long, Boolean> objects = tostamp.get();
+        if(objects.isEmpty()) return;
+        synchronized(objectmap)
+        {
+            Iterator<Map.Entry<Long, Boolean>> it = objects.entrySet().iterator();
+            while(it.hasNext())
+            {
+                Map.Entry<Long, Boolean> e = it.next();
+                CorfuDBObject cob = objectmap.get(e.getKey());
+                //the exclusive timestamp goes first, so that a commutative read never sees the new
+                //state with the old one
+                if(e.getValue())
+                    cob.setExclusiveTimestamp(timestamp);
+                cob.setTimestamp(timestamp);
+            }
+        }
+        objects.clear();
     }
 
     public void apply(Object command, Set<Long> streams, long timestamp)
     {
         if(streams.size()!=1) throw new RuntimeException("unimplemented");
         Long streamid = streams.iterator().next();
+        boolean grouped = (command instanceof GroupedCommand);
+        if(grouped)
+        {
+            //entry of a stream group; the header names the object
+            streamid = ((GroupedCommand)command).oid;
+            command = ((GroupedCommand)command).cmd;
+        }
         synchronized(objectmap)
         {
             if(objectmap.containsKey(streamid))
@@ -139,8 +747,14 @@ public class SimpleRuntime implements AbstractRuntime, SMRLearner
                 //that sets the timestamp
                 //only the apply thread sets the timestamp, so we only have to worry about concurrent reads
                 if(timestamp!=SMREngine.TIMESTAMP_INVALID)
-                    cob.setTimestamp(timestamp);
+                {
+                    boolean exclusive = !(command instanceof CorfuDBObject.CommutativeUpdate);
+                    Boolean prev = tostamp.get().get(streamid);
+                    tostamp.get().put(streamid, exclusive || (prev!=null && prev));
+                }
             }
+            else if(grouped)
+                return; //the object is in a group, but hasn't registered with this client; the entry is replayed to it if it does
             else
                 throw new RuntimeException("entry for stream " + streamid + " with no registered object");
         }
@@ -148,3 +762,18 @@ public class SimpleRuntime implements AbstractRuntime, SMRLearner
     }
 
 }
+
+/**
+ * Command of an object in a stream group, tagged with the ID of the object it's applied to.
+ */
+class GroupedCommand implements Serializable
+{
+    long oid;
+    Object cmd;
+
+    GroupedCommand(long toid, Object tcmd)
+    {
+        oid = toid;
+        cmd = tcmd;
+    }
+}
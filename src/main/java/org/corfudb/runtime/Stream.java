@@ -15,8 +15,19 @@
 package org.corfudb.runtime;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -31,6 +42,11 @@ interface Stream
 {
     long append(Serializable s, Set<Long> streams);
 
+    /**
+     * @return whether the stream bundle includes the given stream
+     */
+    boolean contains(long streamid);
+
     /**
      * reads the next entry in the stream bundle
      *
@@ -49,6 +65,15 @@ interface Stream
      */
     StreamEntry readNext(long stoppos);
 
+    /**
+     * reads the entry at the given position of the underlying log, without moving the read position.
+     * used to fetch state that objects leave in the log rather than keeping it in memory.
+     *
+     * @param  pos      the position to read
+     * @return          the entry at that position
+     */
+    StreamEntry readAt(long pos);
+
     /**
      * returns the current tail position of the stream bundle (this is exclusive, so a checkTail
      * on an empty stream returns 0). this also synchronizes local stream metadata with the underlying
@@ -59,14 +84,62 @@ interface Stream
      */
     long checkTail();
 
+    /**
+     * returns the number of bytes of a serialized entry that fit in a single page of the underlying
+     * log, so that appending and reading it takes a single page write or read.
+     *
+     * @return          the size of a page, less the space the log uses for its own header
+     */
+    int pageBytes();
+
     /**
      * trims all entries in the stream bundle until the passed in position (exclusive). the space
      * may not be reclaimed immediately if the underlying address space only supports a prefix trim.
+     * a stream with no checkpoint can't be trimmed, since restores replay it from the beginning; and
+     * since the address space only supports a global trim, the trim stops short of the entries of any
+     * other stream that lacks a checkpoint covering them.
      *
      * @param   trimpos the position strictly before which all entries belonging to the bundle's
      *                  streams are trimmed
      */
     void prefixTrim(long trimpos);
+
+    /**
+     * appends a checkpoint of state derived from the stream bundle to the log, and records it as the
+     * latest checkpoint. the checkpoint covers every entry read from the bundle so far; the caller
+     * must ensure that no readNext is in progress while the checkpoint is taken.
+     *
+     * a delta checkpoint only holds the changes since the previous checkpoint written or restored
+     * through this stream object, and is chained to it; otherwise the checkpoint starts a new chain.
+     * bundles of several streams can't be checkpointed.
+     *
+     * @param   state   the state to checkpoint
+     * @param   delta   whether state is a delta on top of the previous checkpoint
+     * @return          the position of the checkpoint in the underlying log
+     */
+    long checkpoint(Serializable state, boolean delta);
+
+    /**
+     * looks up the latest checkpoint of the stream bundle and moves the read position past the entries
+     * it covers, so that subsequent readNexts only return the suffix of the bundle. should be called
+     * before the first readNext.
+     *
+     * @return          the checkpoint chain, i.e., the latest full checkpoint followed by the deltas
+     *                  on top of it, in log order; empty if the bundle has no checkpoint
+     */
+    List<CheckpointEntry> restore();
+
+    /**
+     * enables read-ahead: readNext keeps fetching and deserializing the entries at the next window
+     * positions in parallel on the passed in pool, while it still returns them one at a time in log
+     * order. the read position (and thus what a checkpoint covers) only advances as entries are
+     * returned. the reads only proceed in parallel if the address space serves concurrent reads,
+     * e.g., a CorfuLogAddressSpace with per-thread read clients.
+     *
+     * @param   window  the number of positions to read ahead; 0 disables read-ahead
+     * @param   pool    the pool the reads run on; may be shared by several streams
+     */
+    void setReadAhead(int window, ExecutorService pool);
 }
 
 
@@ -108,6 +181,75 @@ class StreamEntry implements Serializable
 }
 
 
+/**
+ * Payload of a checkpoint entry in the log. Checkpoint entries belong to no stream, so playback never
+ * encounters them; instead, each one carries a directory of the latest checkpoint of every stream,
+ * and the address space records the position of the most recent one.
+ */
+class CheckpointEntry implements Serializable
+{
+    private long streamid;
+    private long position;
+    private Serializable state;
+    private boolean delta;
+    private List<Long> chain;
+    private Map<Long, Pair<Long, Long>> directory;
+
+    public long getStreamID()
+    {
+        return streamid;
+    }
+
+    /**
+     * @return  the position up to which (exclusive) the checkpointed state reflects the stream
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+
+    public Serializable getState()
+    {
+        return state;
+    }
+
+    public boolean isDelta()
+    {
+        return delta;
+    }
+
+    /**
+     * @return  log positions of the earlier entries in the checkpoint chain, starting with the full checkpoint;
+     *          empty if this entry is a full checkpoint
+     */
+    public List<Long> getChain()
+    {
+        return chain;
+    }
+
+    /**
+     * @return  map from stream IDs to the log position of their latest checkpoint entry, paired
+     *          with the position before which the log can be trimmed without affecting restores
+     *          from that checkpoint
+     */
+    public Map<Long, Pair<Long, Long>> getDirectory()
+    {
+        return directory;
+    }
+
+    public CheckpointEntry(long tstreamid, long tposition, Serializable tstate, boolean tdelta, List<Long> tchain,
+                           Map<Long, Pair<Long, Long>> tdirectory)
+    {
+        streamid = tstreamid;
+        position = tposition;
+        state = tstate;
+        delta = tdelta;
+        chain = tchain;
+        directory = tdirectory;
+    }
+}
+
+
 interface StreamFactory
 {
     public Stream newStream(long streamid);
@@ -140,12 +282,40 @@ class StreamImpl implements Stream
     long curpos;
     long curtail;
 
+    //read-ahead; the entries at the positions from curpos up to prefetchpos are being read on prefetchpool.
+    //guarded by biglock
+    int prefetchwindow = 0;
+    ExecutorService prefetchpool;
+    long prefetchpos = 0;
+    Map<Long, Future<StreamEntry>> prefetched = new HashMap<Long, Future<StreamEntry>>();
+
+    //positions of the checkpoint chain last written or restored through this stream; delta checkpoints extend it
+    List<Long> ckchain = new ArrayList<Long>();
+
+    //number of threads used to fetch the entries of a checkpoint chain during restore, on a pool shared
+    //by all restores; the threads don't keep the process alive
+    static final int RESTORE_THREADS = 4;
+    static final ExecutorService restorepool = Executors.newFixedThreadPool(RESTORE_THREADS, new ThreadFactory()
+    {
+        public Thread newThread(Runnable r)
+        {
+            Thread T = new Thread(r, "checkpoint-restore");
+            T.setDaemon(true);
+            return T;
+        }
+    });
+
 
     public long getStreamID()
     {
         return streamid;
     }
 
+    public boolean contains(long tstreamid)
+    {
+        return tstreamid==streamid;
+    }
+
     StreamImpl(long tstreamid, StreamingSequencer tss, WriteOnceAddressSpace tlas)
     {
         streamid = tstreamid;
@@ -185,9 +355,30 @@ class StreamImpl implements Stream
                 return null;
             }
             long readpos = curpos++;
+            Future<StreamEntry> F = prefetched.remove(readpos);
+            if(prefetchwindow>0)
+            {
+                //keep the window ahead of the read position filled
+                long limit = Math.min(curtail, readpos + 1 + prefetchwindow);
+                if(stoppos!=0) limit = Math.min(limit, stoppos);
+                for(long pos=Math.max(prefetchpos, curpos);pos<limit;pos++)
+                    prefetched.put(pos, prefetchpool.submit(new EntryReader(pos)));
+                if(limit>prefetchpos) prefetchpos = limit;
+            }
             biglock.unlock();
-            BufferStack bs = addrspace.read(readpos);
-            ret = (StreamEntry) bs.deserialize();
+            if(F==null)
+                ret = readEntry(readpos);
+            else
+            {
+                try
+                {
+                    ret = F.get();
+                }
+                catch(Exception e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
             if(ret.getStreams().contains(this.getStreamID()))
                 break;
             System.out.println("skipping...");
@@ -195,6 +386,56 @@ class StreamImpl implements Stream
         return ret;
     }
 
+    StreamEntry readEntry(long pos)
+    {
+        return (StreamEntry) addrspace.read(pos).deserialize();
+    }
+
+    @Override
+    public StreamEntry readAt(long pos)
+    {
+        return readEntry(pos);
+    }
+
+    //fetches and deserializes an entry on the read-ahead pool
+    class EntryReader implements Callable<StreamEntry>
+    {
+        long pos;
+        EntryReader(long tpos)
+        {
+            pos = tpos;
+        }
+        public StreamEntry call()
+        {
+            return readEntry(pos);
+        }
+    }
+
+    @Override
+    public void setReadAhead(int window, ExecutorService pool)
+    {
+        biglock.lock();
+        prefetchwindow = window;
+        prefetchpool = pool;
+        biglock.unlock();
+    }
+
+    //called with biglock held when the read position jumps ahead; the entries read ahead of it are stale
+    void dropPrefetched()
+    {
+        Iterator<Future<StreamEntry>> it = prefetched.values().iterator();
+        while(it.hasNext())
+            it.next().cancel(false);
+        prefetched.clear();
+        prefetchpos = curpos;
+    }
+
+    @Override
+    public int pageBytes()
+    {
+        return addrspace.pageBytes();
+    }
+
     @Override
     public long checkTail()
     {
@@ -208,7 +449,149 @@ class StreamImpl implements Stream
     @Override
     public void prefixTrim(long trimpos)
     {
-        throw new RuntimeException("unimplemented");
+        //never trim away a checkpoint or the suffix a restore from it has to replay
+        CheckpointEntry latest = readLatestCheckpoint();
+        if(latest==null || !latest.getDirectory().containsKey(streamid))
+            throw new RuntimeException("stream " + streamid + " has no checkpoint; trimming would lose its state");
+        Map<Long, Pair<Long, Long>> directory = latest.getDirectory();
+        Iterator<Pair<Long, Long>> it = directory.values().iterator();
+        while(it.hasNext())
+            trimpos = Math.min(trimpos, it.next().second);
+        //the address space only supports a global prefix trim, which trims the other streams too; the
+        //streams in the directory are covered up to trimpos, and the trim stops at the first entry of
+        //any other stream. checkpoint entries belong to no stream
+        long head = addrspace.queryhead();
+        for(long pos=head;pos<trimpos;pos++)
+        {
+            Iterator<Long> sit = readEntry(pos).getStreams().iterator();
+            while(sit.hasNext())
+            {
+                if(!directory.containsKey(sit.next()))
+                {
+                    trimpos = pos;
+                    break;
+                }
+            }
+        }
+        if(trimpos<=head) return;
+        addrspace.prefixTrim(trimpos);
+        biglock.lock();
+        if(curpos<trimpos)
+        {
+            curpos = trimpos;
+            dropPrefetched();
+        }
+        biglock.unlock();
+    }
+
+    @Override
+    public long checkpoint(Serializable state, boolean delta)
+    {
+        biglock.lock();
+        long ckpos = curpos;
+        biglock.unlock();
+        if(delta && ckchain.size()==0) throw new RuntimeException("delta checkpoint without a previous checkpoint!");
+        List<Long> chain = new ArrayList<Long>();
+        if(delta) chain.addAll(ckchain);
+        //todo: two clients checkpointing concurrently may both start from the same directory, in which case
+        //one of the two checkpoints is dropped from it; restores then fall back to an older checkpoint
+        Map<Long, Pair<Long, Long>> directory = new HashMap<Long, Pair<Long, Long>>();
+        CheckpointEntry latest = readLatestCheckpoint();
+        if(latest!=null)
+            directory.putAll(latest.getDirectory());
+        Set<Long> nostreams = new HashSet<Long>();
+        long ret = seq.get_slot(nostreams);
+        //the whole chain has to survive trims, starting with its full checkpoint
+        long trimpos = chain.size()>0 ? Math.min(chain.get(0), ckpos) : ckpos;
+        directory.put(streamid, new Pair<Long, Long>(ret, trimpos));
+        StreamEntry S = new StreamEntry(new CheckpointEntry(streamid, ckpos, state, delta, chain, directory), ret, nostreams);
+        addrspace.write(ret, BufferStack.serialize(S));
+        addrspace.ckpoint(ret);
+        chain.add(ret);
+        ckchain = chain;
+        System.out.println("wrote " + (delta ? "delta" : "full") + " checkpoint for stream " + streamid + " at slot " + ret);
+        return ret;
+    }
+
+    @Override
+    public List<CheckpointEntry> restore()
+    {
+        List<CheckpointEntry> ret = new ArrayList<CheckpointEntry>();
+        CheckpointEntry latest = readLatestCheckpoint();
+        if(latest==null || !latest.getDirectory().containsKey(streamid))
+            return ret;
+        long ckentrypos = latest.getDirectory().get(streamid).first;
+        CheckpointEntry ck = readCheckpoint(ckentrypos);
+        if(ck==null || ck.getStreamID()!=streamid) throw new RuntimeException("corrupt checkpoint directory!");
+        //the latest entry lists the rest of its chain, so the remaining entries can be fetched and deserialized in parallel
+        ret.addAll(readCheckpoints(ck.getChain()));
+        ret.add(ck);
+        if(ret.get(0).isDelta()) throw new RuntimeException("checkpoint chain does not start with a full checkpoint!");
+        List<Long> chain = new ArrayList<Long>(ck.getChain());
+        chain.add(ckentrypos);
+        ckchain = chain;
+        biglock.lock();
+        if(curpos<ck.getPosition())
+        {
+            curpos = ck.getPosition();
+            dropPrefetched();
+        }
+        biglock.unlock();
+        System.out.println("restored stream " + streamid + " from " + ret.size() + " checkpoints up to position " + ck.getPosition());
+        return ret;
+    }
+
+    /**
+     * reads the checkpoint entries at the passed in positions in parallel, and returns them in the same order
+     */
+    List<CheckpointEntry> readCheckpoints(List<Long> positions)
+    {
+        List<CheckpointEntry> ret = new ArrayList<CheckpointEntry>();
+        if(positions.size()==0) return ret;
+        List<Future<CheckpointEntry>> futures = new ArrayList<Future<CheckpointEntry>>();
+        for(final Long pos : positions)
+        {
+            futures.add(restorepool.submit(new Callable<CheckpointEntry>()
+            {
+                public CheckpointEntry call()
+                {
+                    CheckpointEntry ck = readCheckpoint(pos);
+                    if(ck==null || ck.getStreamID()!=streamid) throw new RuntimeException("corrupt checkpoint chain!");
+                    return ck;
+                }
+            }));
+        }
+        try
+        {
+            for(Future<CheckpointEntry> F : futures)
+                ret.add(F.get());
+        }
+        catch(InterruptedException e)
+        {
+            throw new RuntimeException(e);
+        }
+        catch(ExecutionException e)
+        {
+            throw new RuntimeException(e);
+        }
+        return ret;
+    }
+
+    /**
+     * returns the checkpoint entry at the passed in position, or null if the entry there is not a checkpoint
+     */
+    CheckpointEntry readCheckpoint(long pos)
+    {
+        Object payload = ((StreamEntry)addrspace.read(pos).deserialize()).getPayload();
+        if(!(payload instanceof CheckpointEntry)) return null;
+        return (CheckpointEntry)payload;
+    }
+
+    CheckpointEntry readLatestCheckpoint()
+    {
+        long ckmark = addrspace.queryck();
+        if(ckmark==WriteOnceAddressSpace.NO_CHECKPOINT) return null;
+        return readCheckpoint(ckmark);
     }
 }
 
@@ -232,6 +615,16 @@ class StreamBundleImpl implements Stream
     long curtail;
 
 
+    public void setReadAhead(int window, ExecutorService pool)
+    {
+        //todo: read ahead in bundles too; until then, they read one entry at a time
+    }
+
+    public boolean contains(long streamid)
+    {
+        return mystreams.contains(streamid);
+    }
+
     public StreamBundleImpl(List<Long> streamids, StreamingSequencer tss, WriteOnceAddressSpace tlas)
     {
         las = tlas;
@@ -250,6 +643,11 @@ class StreamBundleImpl implements Stream
 
     }
 
+    public int pageBytes()
+    {
+        return las.pageBytes();
+    }
+
     public long checkTail()
     {
         long tcurtail = ss.check_tail();
@@ -264,7 +662,21 @@ class StreamBundleImpl implements Stream
     public void prefixTrim(long trimpos)
     {
         //todo: do something smarter where we track the individual trim points of all streams
-        las.prefixTrim(trimpos);
+        throw new RuntimeException("stream bundles can't be trimmed, since they aren't checkpointed");
+    }
+
+    @Override
+    public long checkpoint(Serializable state, boolean delta)
+    {
+        //todo: a checkpoint directory entry is keyed by a single stream
+        throw new RuntimeException("stream bundles can't be checkpointed");
+    }
+
+    @Override
+    public List<CheckpointEntry> restore()
+    {
+        //bundles are never checkpointed, so playback starts at the beginning of the log
+        return new ArrayList<CheckpointEntry>();
     }
 
     public StreamEntry readNext()
@@ -274,16 +686,26 @@ class StreamBundleImpl implements Stream
 
     public StreamEntry readNext(long stoppos)
     {
-        biglock.lock();
-        if(!(curpos<curtail && (stoppos==0 || curpos<stoppos)))
+        while(true)
         {
+            biglock.lock();
+            if(!(curpos<curtail && (stoppos==0 || curpos<stoppos)))
+            {
+                biglock.unlock();
+                return null;
+            }
+            long readpos = curpos++;
             biglock.unlock();
-            return null;
+            BufferStack bs = las.read(readpos);
+            StreamEntry ret = (StreamEntry)bs.deserialize();
+            //checkpoints of single streams belong to no stream, and aren't played back
+            if(!(ret.getPayload() instanceof CheckpointEntry))
+                return ret;
         }
-        long readpos = curpos++;
-        biglock.unlock();
-        BufferStack bs = las.read(readpos);
-        StreamEntry ret = (StreamEntry)bs.deserialize();
-        return ret;
+    }
+
+    public StreamEntry readAt(long pos)
+    {
+        return (StreamEntry)las.read(pos).deserialize();
     }
 }
\ No newline at end of file
@@ -14,8 +14,14 @@
  */
 package org.corfudb.runtime;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 /**
  * This class is a transactional runtime implementing the AbstractRuntime interface.
@@ -27,20 +33,132 @@ public class TXRuntime extends SimpleRuntime
 
     final ThreadLocal<TxInt> curtx = new ThreadLocal<TxInt>();
 
-    //used to communicate decisions from the query_helper thread to waiting endtx calls
-    final Map<Long, Boolean> decisionmap;
+    //used to communicate decisions from the query_helper thread to waiting endtx calls; keyed by the
+    //local intention, which playback passes to apply in place of the copy read from the log, so that
+    //intentions batched into one log entry get decisions of their own. an entry only lives while its
+    //EndTX waits for playback to pass the intention, so the map holds one entry per committing thread
+    final Map<TxInt, SMRFuture<Boolean>> decisionmap;
+
+    //barriers of the intentions that local engines are waiting to decide; keyed by transaction ID.
+    //an entry lives from the first engine reaching the intention until the decision
+    final Map<UUID, TxBarrier> sharedecisions;
+
+    //the decisions on the intentions local engines have decided, by position, for engines that reach an
+    //intention once the barrier is gone: objects rehydrated after an eviction replay from their checkpoint,
+    //and an engine that stopped short of an intention reaches it once it's restarted. dropped once no local
+    //engine can play them again. guarded by sharedecisions
+    final TreeMap<Long, Boolean> decisions = new TreeMap<Long, Boolean>();
+
+    //the positions that running read-only transactions are pinned to, with the number of transactions
+    //pinned to each; objects retain the versions they need
+    final TreeMap<Long, Integer> activepins = new TreeMap<Long, Integer>();
+
+    //how often engines waiting at a barrier recheck which engines they wait for, in case one shut down
+    static final long BARRIER_POLL_MS = 10;
 
     public TXRuntime(StreamFactory fact)
     {
         super(fact);
-        decisionmap = new HashMap<Long, Boolean>();
+        decisionmap = new ConcurrentHashMap<TxInt, SMRFuture<Boolean>>();
+        sharedecisions = new HashMap<UUID, TxBarrier>();
+    }
+
+    /**
+     * Not supported yet: intentions name the streams they update by object ID.
+     */
+    public void setStreamGroup(long oid, long groupid)
+    {
+        throw new RuntimeException("TXRuntime does not support stream groups.");
     }
 
     public void BeginTX()
+    {
+        BeginTX(false);
+    }
+
+    public void BeginTX(boolean readonly)
     {
         if (curtx.get() != null) //there's already an executing tx
             throw new RuntimeException("tx already executing!"); //should we do something different to support nested txes?
-        curtx.set(new TxInt());
+        TxInt T = new TxInt();
+        T.readonly = readonly;
+        curtx.set(T);
+    }
+
+    public long getSnapshotPosition()
+    {
+        TxInt T = curtx.get();
+        if(T==null || !T.readonly) return SMREngine.TIMESTAMP_INVALID;
+        return T.pin;
+    }
+
+    public long getOldestSnapshotPosition()
+    {
+        synchronized(activepins)
+        {
+            if(activepins.isEmpty()) return SMREngine.TIMESTAMP_INVALID;
+            return activepins.firstKey();
+        }
+    }
+
+    void addPin(long pos)
+    {
+        synchronized(activepins)
+        {
+            Integer n = activepins.get(pos);
+            activepins.put(pos, (n==null ? 1 : n+1));
+        }
+    }
+
+    void removePin(long pos)
+    {
+        synchronized(activepins)
+        {
+            int n = activepins.get(pos);
+            if(n==1)
+                activepins.remove(pos);
+            else
+                activepins.put(pos, n-1);
+        }
+    }
+
+    //makes sure the object has been played back past the position the read-only transaction is
+    //pinned to, pinning it first if this is the first read of the transaction
+    void snapshot_helper(CorfuDBObject cob)
+    {
+        if(!cob.supportsSnapshots()) throw new RuntimeException("object does not support snapshot reads");
+        TxInt T = curtx.get();
+        SMREngine smre = acquireEngine(cob.getID());
+        try
+        {
+            if(T.pin==SMREngine.TIMESTAMP_INVALID)
+            {
+                //the position synced to isn't known yet, so the versions as of the current one are
+                //retained in the meantime; the transaction is pinned at or after it
+                long provisional = smre.synctail;
+                addPin(provisional);
+                try
+                {
+                    smre.sync();
+                }
+                catch(RuntimeException e)
+                {
+                    removePin(provisional);
+                    throw e;
+                }
+                T.pin = smre.synctail;
+                addPin(T.pin);
+                removePin(provisional);
+            }
+            else if(smre.synctail<T.pin)
+                smre.sync();
+        }
+        catch(RuntimeException e)
+        {
+            releaseEngine(cob.getID());
+            throw e;
+        }
+        holdEngine(cob.getID());
     }
 
 
@@ -50,9 +168,17 @@ public class TXRuntime extends SimpleRuntime
         long txpos = -1;
         //append the transaction intention
         if(curtx.get()==null) throw new RuntimeException("no current transaction!");
+        if(curtx.get().readonly) //reads were served from a consistent snapshot, so there's nothing to validate
+        {
+            if(curtx.get().pin!=SMREngine.TIMESTAMP_INVALID)
+                removePin(curtx.get().pin);
+            curtx.set(null);
+            return true;
+        }
         if(curtx.get().get_streams().size()==0)
         {
-            if(curtx.get().get_readset().size()==0) // empty transaction
+            if(curtx.get().get_readset().size()==0 && curtx.get().get_keyreadset().size()==0
+                    && curtx.get().get_commutativereadset().size()==0) // empty transaction
             {
                 curtx.set(null);
                 return true;
@@ -66,26 +192,63 @@ public class TXRuntime extends SimpleRuntime
             }
 //            throw new RuntimeException("empty transaction!"); //todo: do something more sensible here
         }
-        SMREngine smre = getEngine(curtx.get().get_streams().iterator().next());
-        txpos = smre.propose(curtx.get(), curtx.get().get_streams());
-        //now that we appended the intention, we need to play the stream until the append point
-        //todo: sync each smre involved
-        smre.sync(txpos); //this results in a number of calls to apply, as each intervening intention is processed
+        TxInt T = curtx.get();
+        //the intention goes to the streams of the objects read too, so that their engines take part in the decision
+        Set<Long> involved = involvedStreams(T);
+        //the engines are kept in use until the decision, so that none of them is evicted in between
+        List<Long> acquired = new ArrayList<Long>();
+        SMRFuture<Boolean> decision = new SMRFuture<Boolean>();
+        decisionmap.put(T, decision);
+        try
+        {
+            Map<Long, SMREngine> engines = new HashMap<Long, SMREngine>();
+            Iterator<Long> streamit = involved.iterator();
+            while(streamit.hasNext())
+            {
+                long streamid = streamit.next();
+                engines.put(streamid, acquireEngine(streamid));
+                acquired.add(streamid);
+            }
+            SMREngine smre = engines.get(T.get_streams().iterator().next());
+            //with batching or group commit, the intentions of concurrently committing threads share a log entry
+            txpos = smre.propose(T, involved);
+            //now that we appended the intention, we need to play the streams until the append point.
+            //the intention is appended once, to all the streams it involves; the engine of each applies
+            //its part of the updates, so all of them are synced, in parallel
+            //this results in a number of calls to apply, as each intervening intention is processed
+            List<Future<Long>> syncs = new ArrayList<Future<Long>>();
+            Iterator<SMREngine> engineit = engines.values().iterator();
+            while(engineit.hasNext())
+                syncs.add(engineit.next().syncAsync());
+            for(Future<Long> F : syncs)
+                F.get();
+        }
+        catch(Exception e)
+        {
+            //playback is past the intention, or it was never appended; either way nobody decides it for us
+            decisionmap.remove(T);
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            for(Long streamid : acquired)
+                releaseEngine(streamid);
+        }
         //at this point there should be a decision
         //if not, for now we throw an error (but with decision records we'll keep syncing
         //until we find the decision)
         System.out.println("appended endtx at position " + txpos);
-        synchronized (decisionmap)
+        decisionmap.remove(T);
+        if(!decision.isDone())
+            throw new RuntimeException("decision not found!");
+        curtx.set(null);
+        try
         {
-            if (decisionmap.containsKey(txpos))
-            {
-                boolean dec = decisionmap.get(txpos);
-                decisionmap.remove(txpos);
-                curtx.set(null);
-                return dec;
-            }
-            else
-                throw new RuntimeException("decision not found!");
+            return decision.get();
+        }
+        catch(Exception e)
+        {
+            throw new RuntimeException(e);
         }
     }
 
@@ -95,14 +258,75 @@ public class TXRuntime extends SimpleRuntime
         {
             super.query_helper(cob);
         }
+        else if(curtx.get().readonly)
+        {
+            snapshot_helper(cob);
+        }
         else
         {
+            //the read is served from the local state, which has to be resident, or the timestamp
+            //marked would be that of the released state
+            acquireEngine(cob.getID());
+            holdEngine(cob.getID());
             curtx.get().mark_read(cob.getID(), cob.getTimestamp());
         }
     }
 
+    public void query_helper(CorfuDBObject cob, Serializable key)
+    {
+        if(curtx.get()==null) //non-transactional, pass through
+        {
+            super.query_helper(cob);
+        }
+        else if(curtx.get().readonly)
+        {
+            snapshot_helper(cob);
+        }
+        else
+        {
+            acquireEngine(cob.getID());
+            holdEngine(cob.getID());
+            curtx.get().mark_read(cob.getID(), key, cob.getTimestamp(key));
+        }
+    }
+
+    public void query_helper_commutative(CorfuDBObject cob)
+    {
+        if(curtx.get()==null) //non-transactional, pass through
+        {
+            super.query_helper(cob);
+        }
+        else if(curtx.get().readonly)
+        {
+            snapshot_helper(cob);
+        }
+        else
+        {
+            acquireEngine(cob.getID());
+            holdEngine(cob.getID());
+            curtx.get().mark_commutative_read(cob.getID(), cob.getExclusiveTimestamp());
+        }
+    }
+
+    public void query_then_update_helper(CorfuDBObject cob, Object query, Serializable update, Serializable key)
+    {
+        if(curtx.get()!=null && curtx.get().readonly) throw new RuntimeException("read-only transactions can't update objects");
+        if(curtx.get()!=null && query!=null && !(update instanceof CorfuDBObject.CommutativeUpdate))
+        {
+            //same as below, except that only the key is marked as read
+            Set<Long> streams = new HashSet<Long>();
+            streams.add(cob.getID());
+            query_helper(cob, key);
+            apply(query, streams, SMREngine.TIMESTAMP_INVALID);
+            curtx.get().buffer_update(update, cob.getID());
+        }
+        else
+            query_then_update_helper(cob, query, update);
+    }
+
     public void query_then_update_helper(CorfuDBObject cob, Object query, Serializable update)
     {
+        if(curtx.get()!=null && curtx.get().readonly) throw new RuntimeException("read-only transactions can't update objects");
         Set<Long> streams = new HashSet<Long>();
         streams.add(cob.getID());
         if(curtx.get()==null) //not in a transactional context, append immediately to the stream
@@ -111,14 +335,26 @@ public class TXRuntime extends SimpleRuntime
             //this won't happen since TxInt is not a public class?
             if(update instanceof TxInt) throw new RuntimeException("app cant update_helper a txint");
             //return super.query_then_update_helper(cob, query, update, streams);
-            getEngine(cob.getID()).propose(update, streams, query);
+            SMREngine smre = acquireEngine(cob.getID());
+            try
+            {
+                smre.propose(update, streams, query);
+            }
+            finally
+            {
+                releaseEngine(cob.getID());
+            }
         }
         else //in a transactional context, buffer for now
         {
             if(query !=null)
             {
-                //mark the read set
-                query_helper(cob);
+                //mark the read set; a query paired with a commutative update only conflicts with
+                //updates that aren't commutative
+                if(update instanceof CorfuDBObject.CommutativeUpdate)
+                    query_helper_commutative(cob);
+                else
+                    query_helper(cob);
                 //apply the precommand to the object
                 apply(query, streams, SMREngine.TIMESTAMP_INVALID);
             }
@@ -132,31 +368,65 @@ public class TXRuntime extends SimpleRuntime
         query_then_update_helper(cob, null, update);
     }
 
+    public Future<Long> update_helper_async(CorfuDBObject cob, Serializable update, boolean applied)
+    {
+        if(curtx.get()==null) //not in a transactional context, append in the background
+        {
+            if(update instanceof TxInt) throw new RuntimeException("app cant update_helper a txint");
+            return super.update_helper_async(cob, update, applied);
+        }
+        //in a transactional context, buffer for now; the update takes effect when the transaction commits
+        query_then_update_helper(cob, null, update);
+        SMRFuture<Long> ret = new SMRFuture<Long>();
+        ret.complete(SMREngine.TIMESTAMP_INVALID);
+        return ret;
+    }
+
+    void collectUpdates(CorfuDBObject cob, Object command, Set<Long> streams, List<Object> ret)
+    {
+        if(!(command instanceof TxInt))
+        {
+            super.collectUpdates(cob, command, streams, ret);
+            return;
+        }
+        TxWriteSet W = ((TxInt)command).get_writeset();
+        for(int i=0;i<W.size();i++)
+        {
+            if(W.getStream(i)!=cob.getID()) continue;
+            Set<Long> tstreams = new HashSet<Long>();
+            tstreams.add(W.getStream(i));
+            super.collectUpdates(cob, W.getUpdate(i), tstreams, ret);
+        }
+    }
+
     public void apply(Object command, Set<Long> streams, long timestamp)
     {
         if (command instanceof TxInt)
         {
             TxInt T = (TxInt)command;
-            boolean decision = validate(T);
-            synchronized(decisionmap)
-            {
-                System.out.println("decided position " + timestamp);
-                decisionmap.put(timestamp, decision);
-            }
+            boolean decision = decide(T, timestamp, engineOf(streams));
+            System.out.println("decided position " + timestamp);
+            //only intentions proposed by this client are waited on
+            SMRFuture<Boolean> waiter = decisionmap.get(T);
+            if(waiter!=null)
+                waiter.complete(decision);
             if(decision)
             {
-                Iterator<Pair<Serializable, Long>> it = T.bufferedupdates.iterator();
-                while(it.hasNext())
+                //the objects are stamped once the whole entry is applied (see applied), so that they
+                //publish their state once per intention, rather than after each update
+                TxWriteSet W = T.get_writeset();
+                for(int i=0;i<W.size();i++)
                 {
-                    Pair<Serializable, Long> P = it.next();
+                    //the engines of the other streams apply the rest
+                    if(!streams.contains(W.getStream(i))) continue;
                     Set<Long> tstreams = new HashSet<Long>();
-                    tstreams.add(P.second);
+                    tstreams.add(W.getStream(i));
                     //todo: do we have to do 2-phase locking?
                     //since all updates are funnelled through the apply thread
                     //the only bad thing that can happen is that reads see an inconsistent state
                     //but this can happen anyway, and in this case the transaction will abort
                     //todo: think about providing tx opacity across the board
-                    super.apply(P.first, tstreams, timestamp); //let SimpleRuntime do the object multiplexing
+                    super.apply(W.getUpdate(i), tstreams, timestamp); //let SimpleRuntime do the object multiplexing
                 }
             }
         }
@@ -164,6 +434,135 @@ public class TXRuntime extends SimpleRuntime
             super.apply(command, streams, timestamp);
     }
 
+    //returns the streams of the objects the transaction updates or reads; grouped objects are played from their group
+    Set<Long> involvedStreams(TxInt T)
+    {
+        Set<Long> ret = new HashSet<Long>();
+        Iterator<Long> it = T.get_involved().iterator();
+        while(it.hasNext())
+            ret.add(streamOf(it.next()));
+        return ret;
+    }
+
+    //returns the engine that plays the given streams, i.e., the one calling apply
+    SMREngine engineOf(Set<Long> streams)
+    {
+        long streamid = streams.iterator().next();
+        synchronized(enginemap)
+        {
+            Iterator<SMREngine> it = enginemap.values().iterator();
+            while(it.hasNext())
+            {
+                SMREngine smre = it.next();
+                if(smre.curstream.contains(streamid)) return smre;
+            }
+        }
+        throw new RuntimeException("no engine plays stream " + streamid);
+    }
+
+    //returns the running local engines that play a stream of the intention and haven't passed its position;
+    //each of them is bound to reach the intention. returns null while the engine of an involved stream is
+    //starting, since it may have to reach the intention too
+    Set<SMREngine> pending(TxInt T, long pos)
+    {
+        Set<SMREngine> ret = new HashSet<SMREngine>();
+        Set<Long> involved = involvedStreams(T);
+        synchronized(enginemap)
+        {
+            Iterator<Long> sit = involved.iterator();
+            while(sit.hasNext())
+            {
+                if(starting.containsKey(sit.next()))
+                    return null;
+            }
+            Iterator<SMREngine> it = enginemap.values().iterator();
+            while(it.hasNext())
+            {
+                SMREngine smre = it.next();
+                if(!smre.running || smre.nextpos>pos) continue;
+                Iterator<Long> it2 = involved.iterator();
+                while(it2.hasNext())
+                {
+                    if(smre.curstream.contains(it2.next()))
+                    {
+                        ret.add(smre);
+                        break;
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    //returns the earliest position a local engine may play from again: that of the engines that are
+    //running, and of the evicted objects once they're rehydrated. TIMESTAMP_INVALID while an engine is starting
+    long replayFloor()
+    {
+        synchronized(enginemap)
+        {
+            if(starting.size()>0) return SMREngine.TIMESTAMP_INVALID;
+            long ret = Long.MAX_VALUE;
+            Iterator<SMREngine> it = enginemap.values().iterator();
+            while(it.hasNext())
+                ret = Math.min(ret, it.next().nextpos);
+            Iterator<Long> it2 = evictedat.values().iterator();
+            while(it2.hasNext())
+                ret = Math.min(ret, it2.next());
+            return ret;
+        }
+    }
+
+    //returns the decision on the intention at the given position, which the calling engine has reached.
+    //the engines of the involved objects wait for each other at the intention, so that it's validated
+    //against the state of all of them as of its position, wherever their playback threads are; the decision
+    //then only depends on the log, and every client reaches the same one. the barrier waits for every engine
+    //of an involved stream that hasn't passed the intention, including those that are starting; engines play
+    //the log in order, so the one furthest behind never waits for an intention after the one it's at, and the
+    //wait ends. an engine that reaches the intention once it's decided gets the recorded decision; only one
+    //that starts playing after the decision was dropped, i.e., an object registered after every local engine
+    //passed the intention, decides it on its own
+    boolean decide(TxInt T, long pos, SMREngine me)
+    {
+        synchronized(sharedecisions)
+        {
+            Boolean recorded = decisions.get(pos);
+            if(recorded!=null) return recorded;
+            TxBarrier B = sharedecisions.get(T.txid);
+            if(B==null)
+            {
+                B = new TxBarrier();
+                sharedecisions.put(T.txid, B);
+            }
+            B.arrived.add(me);
+            sharedecisions.notifyAll();
+            while(!B.decided)
+            {
+                Set<SMREngine> waitfor = pending(T, pos);
+                if(waitfor!=null && B.arrived.containsAll(waitfor))
+                {
+                    B.decision = validate(T);
+                    B.decided = true;
+                    sharedecisions.remove(T.txid);
+                    decisions.put(pos, B.decision);
+                    long floor = replayFloor();
+                    if(floor!=SMREngine.TIMESTAMP_INVALID)
+                        decisions.headMap(floor).clear();
+                    sharedecisions.notifyAll();
+                    break;
+                }
+                try
+                {
+                    sharedecisions.wait(BARRIER_POLL_MS);
+                }
+                catch(InterruptedException ie)
+                {
+                    throw new RuntimeException(ie);
+                }
+            }
+            return B.decision;
+        }
+    }
+
     boolean validate(TxInt newtx)
     {
         // to enforce strict serializability, we use a simple rule:
@@ -173,11 +572,27 @@ public class TXRuntime extends SimpleRuntime
         // locks pessimistically.
 
         boolean abort = false;
-        Iterator<Pair<Long, Long>> readsit = newtx.get_readset().iterator();
-        while(readsit.hasNext())
+        //after compaction, each object read is looked up once, against the earliest version read
+        TxReadSet R = newtx.get_readset();
+        R.compact();
+        for(int i=0;i<R.size() && !abort;i++)
+        {
+            if(getObject(R.getObject(i)).getTimestamp()>R.getVersion(i))
+                abort = true;
+        }
+        Iterator<TxKeyRead> keyreadsit = newtx.get_keyreadset().iterator();
+        while(keyreadsit.hasNext())
+        {
+            TxKeyRead curread = keyreadsit.next();
+            if(getObject(curread.object).getTimestamp(curread.key)>curread.version)
+                abort = true;
+        }
+        //commutative reads only conflict with updates that don't commute
+        R = newtx.get_commutativereadset();
+        R.compact();
+        for(int i=0;i<R.size() && !abort;i++)
         {
-            Pair<Long, Long> curread = readsit.next();
-            if(getObject(curread.first).getTimestamp()>curread.second)
+            if(getObject(R.getObject(i)).getExclusiveTimestamp()>R.getVersion(i))
                 abort = true;
         }
         System.out.println("ABORT = " + abort);
@@ -185,36 +600,304 @@ public class TXRuntime extends SimpleRuntime
     }
 }
 
-class TxInt implements Serializable //todo: custom serialization
+/**
+ * A transaction intention. It's written to the log with a binary encoding rather than default
+ * serialization: the read and write sets are kept as arrays of longs, and only the updates
+ * and the keys of key-level reads go through object serialization.
+ */
+class TxInt implements Externalizable
 {
-    List<Pair<Serializable, Long>> bufferedupdates;
+    UUID txid = UUID.randomUUID();
+    TxWriteSet writeset;
     Set<Long> streamset;
-    Set<Pair<Long, Long>> readset;
-    TxInt()
+    TxReadSet readset;
+    //reads of single keys of objects, which only conflict with updates to those keys
+    List<TxKeyRead> keyreadset;
+    //reads that only conflict with updates that aren't commutative (see CorfuDBObject.CommutativeUpdate)
+    TxReadSet commutativereadset;
+    //read-only transactions aren't appended; they read as of the pinned position, which is set at the first read
+    transient boolean readonly = false;
+    transient long pin = SMREngine.TIMESTAMP_INVALID;
+    public TxInt()
     {
-        bufferedupdates = new LinkedList<Pair<Serializable, Long>>();
-        readset = new HashSet<Pair<Long, Long>>();
+        writeset = new TxWriteSet();
+        readset = new TxReadSet();
+        keyreadset = new LinkedList<TxKeyRead>();
+        commutativereadset = new TxReadSet();
         streamset = new HashSet<Long>();
     }
     void buffer_update(Serializable bs, long stream)
     {
-        bufferedupdates.add(new Pair<Serializable, Long>(bs, stream));
+        writeset.add(bs, stream);
         streamset.add(stream);
     }
     void mark_read(long object, long version)
     {
-        readset.add(new Pair(object, version));
+        readset.add(object, version);
+    }
+    void mark_read(long object, Serializable key, long version)
+    {
+        keyreadset.add(new TxKeyRead(object, key, version));
+    }
+    void mark_commutative_read(long object, long version)
+    {
+        commutativereadset.add(object, version);
     }
     Set<Long> get_streams()
     {
         return streamset;
     }
-    Set<Pair<Long, Long>> get_readset()
+    //the objects the transaction updates or reads
+    Set<Long> get_involved()
+    {
+        Set<Long> ret = new HashSet<Long>(streamset);
+        for(int i=0;i<readset.size();i++)
+            ret.add(readset.getObject(i));
+        for(TxKeyRead R : keyreadset)
+            ret.add(R.object);
+        for(int i=0;i<commutativereadset.size();i++)
+            ret.add(commutativereadset.getObject(i));
+        return ret;
+    }
+    TxReadSet get_readset()
     {
         return readset;
     }
-    List<Pair<Serializable, Long>> get_bufferedupdates()
+    TxWriteSet get_writeset()
+    {
+        return writeset;
+    }
+    List<TxKeyRead> get_keyreadset()
+    {
+        return keyreadset;
+    }
+    TxReadSet get_commutativereadset()
+    {
+        return commutativereadset;
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException
+    {
+        out.writeLong(txid.getMostSignificantBits());
+        out.writeLong(txid.getLeastSignificantBits());
+        readset.compact();
+        out.writeInt(readset.size());
+        for(int i=0;i<readset.size();i++)
+        {
+            out.writeLong(readset.getObject(i));
+            out.writeLong(readset.getVersion(i));
+        }
+        out.writeInt(keyreadset.size());
+        for(TxKeyRead R : keyreadset)
+        {
+            out.writeLong(R.object);
+            out.writeLong(R.version);
+            out.writeObject(R.key);
+        }
+        commutativereadset.compact();
+        out.writeInt(commutativereadset.size());
+        for(int i=0;i<commutativereadset.size();i++)
+        {
+            out.writeLong(commutativereadset.getObject(i));
+            out.writeLong(commutativereadset.getVersion(i));
+        }
+        out.writeInt(writeset.size());
+        for(int i=0;i<writeset.size();i++)
+        {
+            out.writeLong(writeset.getStream(i));
+            out.writeObject(writeset.getUpdate(i));
+        }
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
+    {
+        txid = new UUID(in.readLong(), in.readLong());
+        int numreads = in.readInt();
+        for(int i=0;i<numreads;i++)
+            readset.add(in.readLong(), in.readLong());
+        int numkeyreads = in.readInt();
+        for(int i=0;i<numkeyreads;i++)
+        {
+            long object = in.readLong();
+            long version = in.readLong();
+            keyreadset.add(new TxKeyRead(object, (Serializable)in.readObject(), version));
+        }
+        int numcommutativereads = in.readInt();
+        for(int i=0;i<numcommutativereads;i++)
+            commutativereadset.add(in.readLong(), in.readLong());
+        int numupdates = in.readInt();
+        for(int i=0;i<numupdates;i++)
+        {
+            long stream = in.readLong();
+            buffer_update((Serializable)in.readObject(), stream);
+        }
+    }
+}
+
+/**
+ * Read set of a transaction: (object, version) pairs in two parallel arrays. Reads are appended
+ * as they happen; compact sorts them by object and merges the reads of each object into the one
+ * with the earliest version, which is the one that decides whether the transaction conflicts.
+ */
+class TxReadSet
+{
+    long[] objects = new long[8];
+    long[] versions = new long[8];
+    int size = 0;
+    //whether the reads are sorted by object with no duplicates
+    boolean compacted = true;
+
+    synchronized void add(long object, long version)
+    {
+        if(size==objects.length)
+        {
+            objects = Arrays.copyOf(objects, size*2);
+            versions = Arrays.copyOf(versions, size*2);
+        }
+        objects[size] = object;
+        versions[size] = version;
+        size++;
+        compacted = false;
+    }
+
+    synchronized int size()
+    {
+        return size;
+    }
+
+    synchronized long getObject(int i)
+    {
+        return objects[i];
+    }
+
+    synchronized long getVersion(int i)
+    {
+        return versions[i];
+    }
+
+    synchronized void compact()
+    {
+        if(compacted) return;
+        sort(0, size-1);
+        int j = 0;
+        for(int i=0;i<size;i++)
+        {
+            //reads of an object are sorted by version, so the first one of each has the earliest
+            if(j>0 && objects[j-1]==objects[i]) continue;
+            objects[j] = objects[i];
+            versions[j] = versions[i];
+            j++;
+        }
+        size = j;
+        compacted = true;
+    }
+
+    //quicksort of the (object, version) pairs
+    void sort(int lo, int hi)
+    {
+        while(lo<hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            long pobject = objects[mid];
+            long pversion = versions[mid];
+            int i = lo;
+            int j = hi;
+            while(i<=j)
+            {
+                while(less(objects[i], versions[i], pobject, pversion)) i++;
+                while(less(pobject, pversion, objects[j], versions[j])) j--;
+                if(i<=j)
+                {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            //recurse into the smaller part, and loop over the larger one
+            if(j-lo<hi-i)
+            {
+                sort(lo, j);
+                lo = i;
+            }
+            else
+            {
+                sort(i, hi);
+                hi = j;
+            }
+        }
+    }
+
+    static boolean less(long object1, long version1, long object2, long version2)
+    {
+        return object1<object2 || (object1==object2 && version1<version2);
+    }
+
+    void swap(int i, int j)
+    {
+        long t = objects[i];
+        objects[i] = objects[j];
+        objects[j] = t;
+        t = versions[i];
+        versions[i] = versions[j];
+        versions[j] = t;
+    }
+}
+
+/**
+ * Write set of a transaction: the buffered updates in the order they were made, along with the
+ * stream of each in a parallel array.
+ */
+class TxWriteSet
+{
+    List<Serializable> updates = new ArrayList<Serializable>();
+    long[] streams = new long[8];
+
+    void add(Serializable update, long stream)
+    {
+        if(updates.size()==streams.length)
+            streams = Arrays.copyOf(streams, streams.length*2);
+        streams[updates.size()] = stream;
+        updates.add(update);
+    }
+
+    int size()
+    {
+        return updates.size();
+    }
+
+    Serializable getUpdate(int i)
+    {
+        return updates.get(i);
+    }
+
+    long getStream(int i)
+    {
+        return streams[i];
+    }
+}
+
+/**
+ * The engines that have reached an intention, and the decision once all the involved ones have.
+ */
+class TxBarrier
+{
+    Set<SMREngine> arrived = new HashSet<SMREngine>();
+    boolean decided = false;
+    boolean decision;
+}
+
+/**
+ * A read of the state under one key of an object, at the given version of the key.
+ */
+class TxKeyRead implements Serializable
+{
+    long object;
+    Serializable key;
+    long version;
+    TxKeyRead(long tobject, Serializable tkey, long tversion)
     {
-        return bufferedupdates;
+        object = tobject;
+        key = tkey;
+        version = tversion;
     }
 }
@@ -0,0 +1,217 @@
+/**
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.corfudb.runtime;
+
+import java.util.*;
+
+/**
+ * Multi-version history of a keyed CorfuDB object, kept as an undo log: before an update
+ * changes a key, the object records the value the key had, and once the runtime sets the
+ * object timestamp, the record is stamped with the log position of the update. The value of
+ * a key as of a log position (i.e., reflecting all entries strictly before it) is then the
+ * value saved by the oldest update at or after that position, or the current value if the key
+ * hasn't changed since.
+ *
+ * Records are dropped once they're older than the horizon, which advances with the retention
+ * window or explicitly (e.g., to the trim mark of the log); reads before the horizon fail.
+ */
+class VersionHistory<K,V>
+{
+    //undo records of each key, oldest first
+    HashMap<K, LinkedList<VersionRecord<K,V>>> chains = new HashMap<K, LinkedList<VersionRecord<K,V>>>();
+    //undo records of all keys, oldest first
+    LinkedList<VersionRecord<K,V>> records = new LinkedList<VersionRecord<K,V>>();
+    //records of applied updates whose log position isn't known yet
+    List<VersionRecord<K,V>> pending = new ArrayList<VersionRecord<K,V>>();
+
+    //reads are served at positions at or after the horizon
+    long horizon;
+    //number of log positions the history covers behind the latest update
+    long retention;
+
+    /**
+     * @param tretention the number of log positions the history covers behind the latest update
+     * @param thorizon the first position reads can be served at
+     */
+    VersionHistory(long tretention, long thorizon)
+    {
+        retention = tretention;
+        horizon = thorizon;
+    }
+
+    synchronized void setRetention(long tretention)
+    {
+        retention = tretention;
+    }
+
+    /**
+     * Records the value of a key before an update changes it.
+     */
+    synchronized void record(K key, boolean present, V val)
+    {
+        VersionRecord<K,V> R = new VersionRecord<K,V>(key, present, val);
+        LinkedList<VersionRecord<K,V>> chain = chains.get(key);
+        if(chain==null)
+        {
+            chain = new LinkedList<VersionRecord<K,V>>();
+            chains.put(key, chain);
+        }
+        chain.add(R);
+        records.add(R);
+        pending.add(R);
+    }
+
+    /**
+     * Stamps the records of the updates applied since the last call with their log position,
+     * and drops the records that fell out of the retention window.
+     */
+    synchronized void stamp(long ts)
+    {
+        for(VersionRecord<K,V> R : pending)
+            R.ts = ts;
+        pending.clear();
+        gc(ts - retention);
+    }
+
+    /**
+     * Drops all records, when the object state is replaced wholesale; reads are served again
+     * from the position after ts.
+     */
+    synchronized void reset(long ts)
+    {
+        chains.clear();
+        records.clear();
+        pending.clear();
+        horizon = ts + 1;
+    }
+
+    /**
+     * Advances the horizon, dropping the records that are only needed by reads before it.
+     */
+    synchronized void gc(long thorizon)
+    {
+        if(thorizon<=horizon) return;
+        horizon = thorizon;
+        while(records.size()>0 && records.getFirst().ts<horizon)
+        {
+            VersionRecord<K,V> R = records.removeFirst();
+            LinkedList<VersionRecord<K,V>> chain = chains.get(R.key);
+            chain.removeFirst();
+            if(chain.isEmpty())
+                chains.remove(R.key);
+        }
+    }
+
+    /**
+     * Returns the changes made by the updates at or after the position that have been stamped,
+     * oldest first. The caller must make sure the current state doesn't change during the call.
+     *
+     * @param current the current state of the object
+     * @return the changes, or null if the position is before the horizon
+     */
+    synchronized List<MapChange<K,V>> changesSince(long pos, Map<K,V> current)
+    {
+        if(pos<horizon) return null;
+        //the value a record's update left the key with is the one saved by the next record of the key
+        IdentityHashMap<VersionRecord<K,V>, VersionRecord<K,V>> successors = new IdentityHashMap<VersionRecord<K,V>, VersionRecord<K,V>>();
+        Iterator<LinkedList<VersionRecord<K,V>>> it = chains.values().iterator();
+        while(it.hasNext())
+        {
+            VersionRecord<K,V> prev = null;
+            for(VersionRecord<K,V> R : it.next())
+            {
+                if(prev!=null) successors.put(prev, R);
+                prev = R;
+            }
+        }
+        //the updates of one log entry that change a key several times make a single change, from the value
+        //saved by the first record to the one the last left
+        Set<VersionRecord<K,V>> merged = Collections.newSetFromMap(new IdentityHashMap<VersionRecord<K,V>, Boolean>());
+        List<MapChange<K,V>> ret = new ArrayList<MapChange<K,V>>();
+        for(VersionRecord<K,V> R : records)
+        {
+            if(R.ts<pos || R.ts==Long.MAX_VALUE || merged.contains(R)) continue;
+            VersionRecord<K,V> next = successors.get(R);
+            while(next!=null && next.ts==R.ts)
+            {
+                merged.add(next);
+                next = successors.get(next);
+            }
+            V newval = (next!=null ? next.val : current.get(R.key));
+            MapChange<K,V> C = new MapChange<K,V>(R.key, R.val, newval);
+            C.pos = R.ts;
+            ret.add(C);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the records of the updates stamped with positions from pos to upto, inclusive, newest
+     * first; applying them in order to the state as of upto rolls it back to the state as of pos.
+     *
+     * @return the records, or null if the position is before the horizon
+     */
+    synchronized List<VersionRecord<K,V>> undoSince(long pos, long upto)
+    {
+        if(pos<horizon) return null;
+        LinkedList<VersionRecord<K,V>> ret = new LinkedList<VersionRecord<K,V>>();
+        for(VersionRecord<K,V> R : records)
+            if(R.ts>=pos && R.ts<=upto) ret.addFirst(R);
+        return ret;
+    }
+
+    /**
+     * Returns the value of the key as of the position. The caller must make sure the current
+     * state doesn't change during the call.
+     *
+     * @param current the current state of the object
+     * @return the value of the key, with present unset if the key wasn't there;
+     *         or null if the position is before the horizon
+     */
+    synchronized VersionRecord<K,V> lookup(K key, long pos, Map<K,V> current)
+    {
+        if(pos<horizon) return null;
+        LinkedList<VersionRecord<K,V>> chain = chains.get(key);
+        if(chain!=null)
+        {
+            //records of updates that haven't been stamped yet count as later than any position
+            Iterator<VersionRecord<K,V>> it = chain.iterator();
+            while(it.hasNext())
+            {
+                VersionRecord<K,V> R = it.next();
+                if(R.ts>=pos) return R;
+            }
+        }
+        return new VersionRecord<K,V>(key, current.containsKey(key), current.get(key));
+    }
+}
+
+/**
+ * The value of a key before the update at position ts.
+ */
+class VersionRecord<K,V>
+{
+    K key;
+    boolean present;
+    V val;
+    long ts = Long.MAX_VALUE;
+
+    VersionRecord(K tkey, boolean tpresent, V tval)
+    {
+        key = tkey;
+        present = tpresent;
+        val = tval;
+    }
+}
@@ -20,6 +20,7 @@ import org.corfudb.sharedlog.ExtntWrap;
 import org.corfudb.sharedlog.UnwrittenCorfuException;
 
 import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.LinkedList;
 
 /**
@@ -50,6 +51,34 @@ interface WriteOnceAddressSpace
      * @param pos position before which all entries are trimmed
      */
     void prefixTrim(long pos);
+
+    /**
+     * Returns the first position that isn't trimmed.
+     */
+    long queryhead();
+
+    /**
+     * Records the position of the latest checkpoint in the address space.
+     *
+     * @param pos position of the checkpoint entry
+     */
+    void ckpoint(long pos);
+
+    /**
+     * Returns the number of bytes of an entry that fit in a single page of the address space;
+     * larger entries span several pages.
+     */
+    int pageBytes();
+
+    /**
+     * Returns the position of the latest recorded checkpoint. This is the position most recently
+     * passed to ckpoint, or NO_CHECKPOINT if none was recorded.
+     *
+     * @return position of the latest checkpoint entry
+     */
+    long queryck();
+
+    static final long NO_CHECKPOINT = -1;
 }
 
 /**
@@ -59,23 +88,69 @@ class CorfuLogAddressSpace implements WriteOnceAddressSpace
 {
     ClientLib cl;
 
+    //the master to connect per-thread read clients to; null if reads share cl
+    String masteraddress;
+    //the read client of each thread, e.g., of each read-ahead thread, so that reads run in parallel
+    ThreadLocal<ClientLib> readers = new ThreadLocal<ClientLib>();
+
+    //the header at the start of the first page of an entry: the format marker, then the length of the entry.
+    //entries written before the header have no marker, and start with the serialized entry instead
+    static final int HEADER_BYTES = 8;
+    static final int FORMAT_MARKER = 0xC0FD0001;
+
     public CorfuLogAddressSpace(ClientLib tcl)
     {
         cl = tcl;
     }
 
+    /**
+     * Creates an address space whose reads run in parallel, each thread reading through its own
+     * client connected to the given master; everything else goes through the shared client.
+     *
+     * @param tcl the shared client
+     * @param tmasteraddress the master the read clients connect to
+     */
+    public CorfuLogAddressSpace(ClientLib tcl, String tmasteraddress)
+    {
+        cl = tcl;
+        masteraddress = tmasteraddress;
+    }
+
+    //reads an extent through the thread's own client, or the shared one
+    ExtntWrap readExtnt(long pos) throws CorfuException
+    {
+        if(masteraddress==null)
+        {
+            synchronized(cl)
+            {
+                return cl.readExtnt(pos);
+            }
+        }
+        ClientLib reader = readers.get();
+        if(reader==null)
+        {
+            reader = new ClientLib(masteraddress);
+            readers.set(reader);
+        }
+        return reader.readExtnt(pos);
+    }
+
     //todo we are currently synchronizing on 'cl' because ClientLib crashes on concurrent access;
     public void write(long pos, BufferStack bs)
     {
         try
         {
-            //convert to a linked list of extent-sized bytebuffers, which is what the logging layer wants
-            if(bs.numBytes()>cl.grainsize())
-                throw new RuntimeException("entry too big at " + bs.numBytes() + " bytes; multi-entry writes not yet implemented");
+            //convert to a linked list of extent-sized bytebuffers, which is what the logging layer wants;
+            //the log unit stores them as a multi-page extent at the one position. the entry is prefixed
+            //with a format marker and its length, so that reads can strip the padding of the last page
+            int grainsize = cl.grainsize();
+            int numpages = (HEADER_BYTES + bs.numBytes() + grainsize - 1) / grainsize;
+            byte[] payload = new byte[numpages * grainsize];
+            ByteBuffer.wrap(payload).putInt(FORMAT_MARKER).putInt(bs.numBytes());
+            System.arraycopy(bs.flatten(), 0, payload, HEADER_BYTES, bs.numBytes());
             LinkedList<ByteBuffer> buflist = new LinkedList<ByteBuffer>();
-            byte[] payload = new byte[cl.grainsize()];
-            bs.flatten(payload);
-            buflist.add(ByteBuffer.wrap(payload));
+            for(int i=0;i<numpages;i++)
+                buflist.add(ByteBuffer.wrap(payload, i * grainsize, grainsize).slice());
             synchronized(cl)
             {
                 cl.writeExtnt(pos, buflist);
@@ -97,21 +172,10 @@ class CorfuLogAddressSpace implements WriteOnceAddressSpace
         {
             try
             {
-                ExtntWrap ew = null;
-                synchronized(cl)
-                {
-                    ew = cl.readExtnt(pos);
-                }
+                ExtntWrap ew = readExtnt(pos);
                 //for now, copy to a byte array and return
-                System.out.println("read back " + ew.getCtntSize() + " bytes");
-                ret = new byte[4096 * 10]; //hack --- fix this
-                ByteBuffer bb = ByteBuffer.wrap(ret);
-                java.util.Iterator<ByteBuffer> it = ew.getCtntIterator();
-                while (it.hasNext())
-                {
-                    ByteBuffer btemp = it.next();
-                    bb.put(btemp);
-                }
+                System.out.println("read back " + ew.getCtntSize() + " pages");
+                ret = assemble(ew, pos);
                 break;
             }
             catch (UnwrittenCorfuException uce)
@@ -139,6 +203,30 @@ class CorfuLogAddressSpace implements WriteOnceAddressSpace
 
     }
 
+    //reassembles an entry written by write from the pages of its extent
+    static byte[] assemble(ExtntWrap ew, long pos)
+    {
+        Iterator<ByteBuffer> it = ew.getCtntIterator();
+        if(!it.hasNext()) throw new RuntimeException("no content at position " + pos);
+        ByteBuffer page = it.next().duplicate();
+        if(page.remaining()<HEADER_BYTES || page.getInt()!=FORMAT_MARKER)
+            throw new RuntimeException("entry at position " + pos + " has no format marker; it was written by an older version, or isn't a runtime entry");
+        int len = page.getInt();
+        if(len<0) throw new RuntimeException("entry at position " + pos + " has a corrupt header");
+        byte[] ret = new byte[len];
+        int off = 0;
+        while(true)
+        {
+            int n = Math.min(page.remaining(), len - off);
+            page.get(ret, off, n);
+            off += n;
+            if(off==len) break;
+            if(!it.hasNext()) throw new RuntimeException("entry at position " + pos + " is truncated");
+            page = it.next().duplicate();
+        }
+        return ret;
+    }
+
     @Override
     public void prefixTrim(long pos)
     {
@@ -154,4 +242,68 @@ class CorfuLogAddressSpace implements WriteOnceAddressSpace
             throw new RuntimeException(e);
         }
     }
+
+    @Override
+    public long queryhead()
+    {
+        try
+        {
+            synchronized(cl)
+            {
+                return cl.queryhead();
+            }
+        }
+        catch (CorfuException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public int pageBytes()
+    {
+        try
+        {
+            return cl.grainsize() - HEADER_BYTES;
+        }
+        catch (CorfuException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void ckpoint(long pos)
+    {
+        try
+        {
+            synchronized(cl)
+            {
+                //the log units start out with a mark of 0, which is a valid position; the mark is
+                //kept one past the checkpoint, so that 0 means that none was recorded
+                cl.ckpoint(pos + 1);
+            }
+        }
+        catch (CorfuException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public long queryck()
+    {
+        try
+        {
+            synchronized(cl)
+            {
+                long ckmark = cl.queryck();
+                return (ckmark==0 ? NO_CHECKPOINT : ckmark - 1);
+            }
+        }
+        catch (CorfuException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
 }
@@ -328,7 +328,21 @@ public class ClientLib implements
 	 */
 	@Override
 	public long queryck() throws CorfuException {
-		throw new BadParamCorfuException("queryck() not implemented yet");
+		long r = -1;
+		for (Vector<Endpoint> grp : CM.getActiveSegmentView().getGroups()) {
+			for (Endpoint ep : grp) {
+				if (ep == null) continue; // fault unit, removed from configuration
+				LogUnitService.Client sunit = Endpoint.getSUnitOf(ep);
+				try {
+					long ck = sunit.queryck();
+					if (ck > r) r = ck;
+				} catch (TException e) {
+					throw new InternalCorfuException("queryck() failed ");
+				}
+			}
+		}
+		if (r < 0) throw new InternalCorfuException("queryck() call returned negative value, shouldn't happen");
+		return r;
 	}
 
 	/**
@@ -339,7 +353,18 @@ public class ClientLib implements
 	 */
 	@Override
 	public void ckpoint(long off) throws CorfuException {
-		throw new BadParamCorfuException("ckpoint() not implemented yet");
+		// every unit records the mark, so that queryck() can be answered by any of them
+		for (Vector<Endpoint> grp : CM.getActiveSegmentView().getGroups()) {
+			for (Endpoint ep : grp) {
+				if (ep == null) continue; // fault unit, removed from configuration
+				LogUnitService.Client sunit = Endpoint.getSUnitOf(ep);
+				try {
+					sunit.ckpoint(new UnitServerHdr(CM.getIncarnation(), off));
+				} catch (TException e) {
+					throw new InternalCorfuException("ckpoint() failed ");
+				}
+			}
+		}
 	}
 
 	/**
@@ -73,7 +73,7 @@ public class LogUnitTask implements LogUnitService.Iface, ICorfuDBServer {
     protected int PAGESIZE;
 
 
-	private int ckmark = 0; // start offset of latest checkpoint. TODO: persist!!
+	private long ckmark = 0; // log offset of latest checkpoint. TODO: persist!!
 
 	private FileChannel DriveChannel = null;
 	private Object DriveLck = new Object();
@@ -458,7 +458,7 @@ public class LogUnitTask implements LogUnitService.Iface, ICorfuDBServer {
             initLogStore(wr.getBmap(), UNITCAPACITY);
             lowwater = highwater = wr.getLowwater();
             gcmark = wr.getTrimmark();
-            ckmark = (int)wr.getCkmark();
+            ckmark = wr.getCkmark();
             put(wr.getCtnt());
             if (highwater != wr.getHighwater())
                 log.error("rebuildfromnode lowwater={} highwater={} received ({},{})",
@@ -602,7 +602,7 @@ public class LogUnitTask implements LogUnitService.Iface, ICorfuDBServer {
     synchronized public void ckpoint(UnitServerHdr hdr) throws org.apache.thrift.TException {
         // if (hdr.getEpoch() < epoch) return ErrorCode.ERR_STALEEPOCH;
 		log.info("mark latest checkpoint offset={}", hdr.off);
-		if (hdr.off > ckmark) ckmark = (int) (hdr.off % UNITCAPACITY);
+		if (hdr.off > ckmark) ckmark = hdr.off;
 	}
 
     /**